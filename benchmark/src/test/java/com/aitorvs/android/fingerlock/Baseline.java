@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Baseline of the benchmarks, <code>baseline.properties</code> in the benchmark module. Every
+ * result is checked against its baseline entry:
+ * <ul>
+ * <li>bytes per operation can't grow beyond a small tolerance. The allocations of the JDK's
+ * <code>Cipher</code> and key store depend on the JDK, they are only checked when the baseline
+ * was recorded on the same JDK</li>
+ * <li>the median latency can't grow beyond a factor, generous since it depends on the machine.
+ * The latency is only reported unless <code>fingerlock.benchmark.checkLatency</code> is set</li>
+ * </ul>
+ * Results without baseline entry are reported but not checked. In record mode the results
+ * replace the baseline entries instead.
+ */
+final class Baseline {
+
+    private static final String BASELINE_PATH = System.getProperty("fingerlock.benchmark.baseline", "baseline.properties");
+    private static final String RESULTS_PATH = System.getProperty("fingerlock.benchmark.results");
+    private static final boolean RECORD = Boolean.getBoolean("fingerlock.benchmark.record");
+    private static final boolean CHECK_LATENCY = Boolean.getBoolean("fingerlock.benchmark.checkLatency");
+
+    // JDK the baseline was recorded on
+    private static final String JDK_KEY = "jdk";
+    private static final String JDK = System.getProperty("java.vendor") + " " + System.getProperty("java.specification.version");
+
+    private static final double LATENCY_TOLERANCE =
+            Double.parseDouble(System.getProperty("fingerlock.benchmark.latencyTolerance", "3.0"));
+    private static final double ALLOCATION_TOLERANCE = 1.1;
+    // absorbs the allocation noise of operations that allocate close to nothing
+    private static final long ALLOCATION_SLACK_BYTES = 16;
+
+    private static final Object sLock = new Object();
+    // the results of a previous run are dropped upon the first report
+    private static boolean sReported;
+
+    private Baseline() {
+    }
+
+    /**
+     * Reports the result and checks it against the baseline, or records it in record mode
+     *
+     * @param result benchmark result
+     */
+    static void check(Benchmark.Result result) throws IOException {
+        check(result, false);
+    }
+
+    /**
+     * Same as {@link #check(Benchmark.Result)} for operations that go through the JDK's
+     * <code>Cipher</code> or key store, which allocate differently from one JDK to another
+     *
+     * @param result benchmark result
+     */
+    static void checkJdkDependent(Benchmark.Result result) throws IOException {
+        check(result, true);
+    }
+
+    private static void check(Benchmark.Result result, boolean jdkDependent) throws IOException {
+        synchronized (sLock) {
+            System.out.println(result);
+            report(result);
+
+            File file = new File(BASELINE_PATH);
+            Properties baseline = load(file);
+            if (RECORD) {
+                baseline.setProperty(result.name + ".p50", String.valueOf(result.p50));
+                baseline.setProperty(result.name + ".p90", String.valueOf(result.p90));
+                baseline.setProperty(result.name + ".p99", String.valueOf(result.p99));
+                baseline.setProperty(result.name + ".bytes", String.valueOf(result.bytesPerOp));
+                baseline.setProperty(JDK_KEY, JDK);
+                store(file, baseline);
+                return;
+            }
+
+            String bytes = baseline.getProperty(result.name + ".bytes");
+            String p50 = baseline.getProperty(result.name + ".p50");
+            if (bytes == null || p50 == null) {
+                System.out.println(result.name + ": no baseline, record one with -PrecordBaseline");
+                return;
+            }
+
+            long maxBytes = (long) (Long.parseLong(bytes) * ALLOCATION_TOLERANCE) + ALLOCATION_SLACK_BYTES;
+            if (jdkDependent && !JDK.equals(baseline.getProperty(JDK_KEY))) {
+                System.out.println(result.name + ": baseline recorded on " + baseline.getProperty(JDK_KEY)
+                        + ", allocation not checked on " + JDK);
+            } else if (result.bytesPerOp > maxBytes) {
+                fail(String.format("%s allocates %d B/op, baseline %s B/op", result.name, result.bytesPerOp, bytes));
+            }
+            long maxP50 = (long) (Long.parseLong(p50) * LATENCY_TOLERANCE);
+            if (CHECK_LATENCY && result.p50 > maxP50) {
+                fail(String.format("%s takes %d ns (p50), baseline %s ns", result.name, result.p50, p50));
+            }
+        }
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+
+    private static void store(File file, Properties properties) throws IOException {
+        // sorted, so that baseline updates diff nicely
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("# FingerLock benchmark baseline, latency in ns and allocation in bytes per operation\n");
+            for (String name : new TreeSet<>(properties.stringPropertyNames())) {
+                writer.write(name + "=" + properties.getProperty(name) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void report(Benchmark.Result result) throws IOException {
+        if (RESULTS_PATH == null) {
+            return;
+        }
+        File file = new File(RESULTS_PATH);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        Writer writer = new FileWriter(file, sReported);
+        sReported = true;
+        try {
+            writer.write(result.toString());
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Minimal JMH-style harness. Every operation is warmed up first so that it's compiled, then
+ * measured one invocation at a time to get the latency distribution and the bytes allocated by
+ * the benchmarking thread.
+ * <p>
+ * The allocation counter is precise (TLAB accounting) so allocation regressions are reliable,
+ * the latency depends on the machine running the benchmarks.
+ */
+final class Benchmark {
+
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("fingerlock.benchmark.warmup", 20000);
+    private static final int ITERATIONS = Integer.getInteger("fingerlock.benchmark.iterations", 20000);
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // bytes allocated by the measurement itself, subtracted from every sample
+    private static final long ALLOCATION_OVERHEAD = allocationOverhead();
+
+    /**
+     * One benchmarked operation. The set up runs before every invocation and it's excluded from
+     * the measurement.
+     */
+    abstract static class Operation {
+
+        void setUp() throws Exception {
+        }
+
+        abstract void run() throws Exception;
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Measures the given operation
+     *
+     * @param name      benchmark name, the key in the baseline
+     * @param operation operation to measure
+     * @return the result
+     */
+    static Result measure(String name, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.setUp();
+            operation.run();
+        }
+
+        long[] samples = new long[ITERATIONS];
+        long allocated = 0;
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.setUp();
+            long bytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            operation.run();
+            long end = System.nanoTime();
+            allocated += THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - bytes - ALLOCATION_OVERHEAD;
+            samples[i] = end - start;
+        }
+
+        Arrays.sort(samples);
+        return new Result(name, percentile(samples, 50), percentile(samples, 90), percentile(samples, 99),
+                Math.max(0, allocated / ITERATIONS));
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static long allocationOverhead() {
+        long threadId = Thread.currentThread().getId();
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long bytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+            overhead = Math.min(overhead, THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - bytes);
+        }
+        return overhead;
+    }
+
+    /**
+     * Latency percentiles (nanoseconds) and bytes allocated per operation
+     */
+    static final class Result {
+        final String name;
+        final long p50;
+        final long p90;
+        final long p99;
+        final long bytesPerOp;
+
+        Result(String name, long p50, long p90, long p99, long bytesPerOp) {
+            this.name = name;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-50s p50 %8d ns  p90 %8d ns  p99 %8d ns  %6d B/op", name, p50, p90, p99, bytesPerOp);
+        }
+    }
+}
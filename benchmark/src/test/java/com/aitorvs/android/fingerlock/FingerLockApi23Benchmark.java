@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency and allocation of the authentication lifecycle: register until ready, start until
+ * scanning and stop.
+ */
+public class FingerLockApi23Benchmark {
+
+    private static final String KEY_NAME = "benchmark";
+
+    private FingerLockSimulator mSimulator;
+    private FingerLockApi23 mApi;
+    private Context mContext;
+    private CountingCallback mCallback;
+
+    @Before
+    public void setUp() {
+        mSimulator = StandIns.install();
+        mApi = new FingerLockApi23();
+        mContext = new ContextWrapper(null);
+        mCallback = new CountingCallback();
+        mApi.register(mContext, KEY_NAME, mCallback);
+    }
+
+    @After
+    public void tearDown() {
+        mApi.unregister(mCallback);
+        StandIns.uninstall();
+    }
+
+    @Test
+    public void registerToReady() throws Exception {
+        Baseline.check(Benchmark.measure("FingerLockApi23.registerToReady", new Benchmark.Operation() {
+            @Override
+            void run() {
+                // same listener registering again, as it happens on every resume
+                mApi.register(mContext, KEY_NAME, mCallback);
+            }
+        }));
+        assertTrue(mCallback.ready > 1);
+        assertEquals(0, mCallback.errors);
+    }
+
+    @Test
+    public void startToScanning() throws Exception {
+        Baseline.check(Benchmark.measure("FingerLockApi23.startToScanning", new Benchmark.Operation() {
+            @Override
+            void setUp() {
+                mApi.stop(mCallback);
+            }
+
+            @Override
+            void run() {
+                mApi.start(mCallback);
+            }
+        }));
+        assertTrue(mCallback.scanning > 0);
+        assertEquals(mCallback.scanning, mSimulator.getAuthenticationCount());
+        assertEquals(0, mCallback.errors);
+    }
+
+    @Test
+    public void startWithCipherToScanning() throws Exception {
+        Baseline.checkJdkDependent(Benchmark.measure("FingerLockApi23.startWithCipherToScanning", new Benchmark.Operation() {
+            @Override
+            void setUp() {
+                mApi.stop(mCallback);
+            }
+
+            @Override
+            void run() {
+                mApi.start(mCallback, Cipher.ENCRYPT_MODE, null);
+            }
+        }));
+        assertTrue(mCallback.scanning > 0);
+        assertEquals(mCallback.scanning, mSimulator.getAuthenticationCount());
+        assertEquals(0, mCallback.errors);
+    }
+
+    @Test
+    public void stop() throws Exception {
+        Baseline.check(Benchmark.measure("FingerLockApi23.stop", new Benchmark.Operation() {
+            @Override
+            void setUp() {
+                mApi.start(mCallback);
+            }
+
+            @Override
+            void run() {
+                mApi.stop(mCallback);
+            }
+        }));
+        assertTrue(mSimulator.getAuthenticationCount() > 0);
+        assertEquals(0, mCallback.errors);
+    }
+}
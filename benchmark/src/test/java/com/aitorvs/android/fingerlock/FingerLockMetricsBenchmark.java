@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cost of the metrics. Recording should not allocate, whether called directly or along with the
+ * sensor events.
+ */
+public class FingerLockMetricsBenchmark {
+
+    private static final String HELP = "Move your finger slightly";
+
+    private FingerLockMetrics mMetrics;
+    private CountingCallback mCallback;
+    private FingerprintAuthHandler mHandler;
+
+    @Before
+    public void setUp() {
+        FingerLockSimulator simulator = StandIns.install();
+        mMetrics = new FingerLockMetrics();
+        FingerLock.setMetricsListener(mMetrics);
+        mCallback = new CountingCallback();
+        mHandler = new FingerprintAuthHandler(null, null, mCallback);
+        assertTrue(mHandler.start(simulator.sensor(), null));
+    }
+
+    @After
+    public void tearDown() {
+        FingerLock.setMetricsListener(null);
+        StandIns.uninstall();
+    }
+
+    @Test
+    public void onPhase() throws Exception {
+        Baseline.check(Benchmark.measure("FingerLockMetrics.onPhase", new Benchmark.Operation() {
+            @Override
+            void run() {
+                mMetrics.onPhase(FingerLockMetricsListener.PHASE_KEY_VALIDATION, 250000);
+            }
+        }));
+    }
+
+    @Test
+    public void onAuthenticationHelp() throws Exception {
+        Baseline.check(Benchmark.measure("FingerLockMetrics.onAuthenticationHelp", new Benchmark.Operation() {
+            @Override
+            void run() {
+                mHandler.onAuthenticationHelp(1, HELP);
+            }
+        }));
+        assertTrue(mMetrics.snapshot().getErrorCount(FingerLock.FINGERPRINT_ERROR_HELP) > 0);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency and allocation of an authentication session and its sensor events. The events may
+ * be delivered many times per second while the finger is on the sensor, they should not
+ * allocate.
+ */
+public class FingerprintAuthHandlerBenchmark {
+
+    private static final String HELP = "Move your finger slightly";
+
+    private FingerLockSimulator mSimulator;
+    private FingerprintSensor mSensor;
+    private CountingCallback mCallback;
+    private FingerprintAuthHandler mHandler;
+
+    @Before
+    public void setUp() {
+        mSimulator = StandIns.install();
+        mSensor = mSimulator.sensor();
+        mCallback = new CountingCallback();
+        mHandler = new FingerprintAuthHandler(null, null, mCallback);
+        assertTrue(mHandler.start(mSensor, null));
+    }
+
+    @After
+    public void tearDown() {
+        StandIns.uninstall();
+    }
+
+    @Test
+    public void start() throws Exception {
+        Baseline.check(Benchmark.measure("FingerprintAuthHandler.start", new Benchmark.Operation() {
+            @Override
+            void run() {
+                new FingerprintAuthHandler(null, null, mCallback).start(mSensor, null);
+            }
+        }));
+    }
+
+    @Test
+    public void stop() throws Exception {
+        Baseline.check(Benchmark.measure("FingerprintAuthHandler.stop", new Benchmark.Operation() {
+            @Override
+            void setUp() {
+                mHandler = new FingerprintAuthHandler(null, null, mCallback);
+                mHandler.start(mSensor, null);
+            }
+
+            @Override
+            void run() {
+                mHandler.stop();
+            }
+        }));
+    }
+
+    @Test
+    public void onAuthenticationFailed() throws Exception {
+        Baseline.check(Benchmark.measure("FingerprintAuthHandler.onAuthenticationFailed", new Benchmark.Operation() {
+            @Override
+            void run() {
+                mHandler.onAuthenticationFailed();
+            }
+        }));
+        assertTrue(mCallback.errors > 0);
+    }
+
+    @Test
+    public void onAuthenticationHelp() throws Exception {
+        Baseline.check(Benchmark.measure("FingerprintAuthHandler.onAuthenticationHelp", new Benchmark.Operation() {
+            @Override
+            void run() {
+                mHandler.onAuthenticationHelp(1, HELP);
+            }
+        }));
+        assertTrue(mCallback.errors > 0);
+    }
+
+    @Test
+    public void onAuthenticationSucceeded() throws Exception {
+        Baseline.check(Benchmark.measure("FingerprintAuthHandler.onAuthenticationSucceeded", new Benchmark.Operation() {
+            @Override
+            void setUp() {
+                mHandler = new FingerprintAuthHandler(null, null, mCallback);
+                mHandler.start(mSensor, null);
+            }
+
+            @Override
+            void run() {
+                mHandler.onAuthenticationSucceeded(null);
+            }
+        }));
+        assertEquals(mCallback.succeeded, mSimulator.getAuthenticationCount() - 1);
+    }
+}
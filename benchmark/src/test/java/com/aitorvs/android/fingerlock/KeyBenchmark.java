@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency and allocation of the key store work done before every authentication
+ */
+public class KeyBenchmark {
+
+    private static final String KEY_NAME = "benchmark";
+
+    private Key mKey;
+    private byte[] mIv;
+
+    @Before
+    public void setUp() throws Exception {
+        StandIns.install();
+        assertTrue(KeyRegistry.obtain(KEY_NAME).recreateKey());
+        mKey = KeyRegistry.obtain(KEY_NAME);
+        mIv = mKey.newCipher(Cipher.ENCRYPT_MODE, null).getIV();
+    }
+
+    @After
+    public void tearDown() {
+        StandIns.uninstall();
+    }
+
+    @Test
+    public void isKeyValid() throws Exception {
+        Baseline.checkJdkDependent(Benchmark.measure("Key.isKeyValid", new Benchmark.Operation() {
+            @Override
+            void run() throws Exception {
+                assertTrue(mKey.isKeyValid());
+            }
+        }));
+    }
+
+    @Test
+    public void newEncryptCipher() throws Exception {
+        Baseline.checkJdkDependent(Benchmark.measure("Key.newCipher.encrypt", new Benchmark.Operation() {
+            @Override
+            void run() throws Exception {
+                assertNotNull(mKey.newCipher(Cipher.ENCRYPT_MODE, null));
+            }
+        }));
+    }
+
+    @Test
+    public void newDecryptCipher() throws Exception {
+        Baseline.checkJdkDependent(Benchmark.measure("Key.newCipher.decrypt", new Benchmark.Operation() {
+            @Override
+            void run() throws Exception {
+                assertNotNull(mKey.newCipher(Cipher.DECRYPT_MODE, mIv));
+            }
+        }));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Installs the {@link FingerLockSimulator} in place of the fingerprint sensor and the key store,
+ * and runs the key store work and the results in the calling thread so that every operation is
+ * measured end to end.
+ */
+final class StandIns {
+
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private StandIns() {
+    }
+
+    static FingerLockSimulator install() {
+        FingerLockSimulator simulator = new FingerLockSimulator.Builder()
+                .setMainExecutor(DIRECT)
+                .build()
+                .install();
+        KeyExecutor.setExecutors(DIRECT, DIRECT);
+        return simulator;
+    }
+
+    static void uninstall() {
+        FingerLockSimulator.uninstall();
+    }
+}
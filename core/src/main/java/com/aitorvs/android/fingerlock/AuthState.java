@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * {@hide}
+ * Authentication lifecycle states.
+ * <p>
+ * A registration moves {@link #IDLE} -> {@link #REGISTERED} -> {@link #IDLE}, every
+ * authentication session started on it moves {@link #REGISTERED} -> {@link #SCANNING} and ends in
+ * one of {@link #SUCCEEDED}, {@link #FAILED} or {@link #CANCELLED}. Transitions are performed with
+ * compare-and-set so only one of the racing parties (e.g. a <code>stop()</code> and the sensor
+ * reporting a match) wins, the other one is dropped.
+ */
+final class AuthState {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({IDLE, REGISTERED, SCANNING, SUCCEEDED, FAILED, CANCELLED})
+    @interface State {
+    }
+
+    static final int IDLE = 0;
+    static final int REGISTERED = 1;
+    static final int SCANNING = 2;
+    static final int SUCCEEDED = 3;
+    static final int FAILED = 4;
+    static final int CANCELLED = 5;
+
+    private AuthState() {
+    }
+
+    /**
+     * @return <code>true</code> when the state is final, no more events are delivered
+     */
+    static boolean isTerminal(@State int state) {
+        return state == SUCCEEDED || state == FAILED || state == CANCELLED;
+    }
+
+    static String name(@State int state) {
+        switch (state) {
+            case IDLE:
+                return "IDLE";
+            case REGISTERED:
+                return "REGISTERED";
+            case SCANNING:
+                return "SCANNING";
+            case SUCCEEDED:
+                return "SUCCEEDED";
+            case FAILED:
+                return "FAILED";
+            case CANCELLED:
+                return "CANCELLED";
+            default:
+                return "UNKNOWN(" + state + ")";
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Streaming encryption/decryption helpers on top of an initialized {@link Cipher}, typically the
+ * one authorized through {@link FingerLockCipherCallback}.
+ * <p>
+ * Data is processed in fixed-size chunks, so memory stays bounded no matter how large the
+ * payload is. Note that authenticated modes (e.g. GCM) may still buffer the whole payload inside
+ * the cipher when decrypting, as the plain text cannot be released before the tag is verified.
+ */
+public final class CipherStreams {
+
+    /**
+     * Default chunk size, in bytes
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    private CipherStreams() {
+    }
+
+    /**
+     * Returns an {@link OutputStream} that transforms (encrypts or decrypts, depending on the
+     * cipher mode) the data written to it before passing it to the given stream. Closing the
+     * returned stream finishes the cipher operation and closes the given stream.
+     *
+     * @param cipher initialized cipher
+     * @param out    output stream
+     * @return cipher output stream
+     */
+    @NonNull
+    public static OutputStream newOutputStream(@NonNull Cipher cipher, @NonNull OutputStream out) {
+        return newOutputStream(cipher, out, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Same as {@link #newOutputStream(Cipher, OutputStream)} with a custom chunk size
+     *
+     * @param cipher    initialized cipher
+     * @param out       output stream
+     * @param chunkSize chunk size in bytes
+     * @return cipher output stream
+     */
+    @NonNull
+    public static OutputStream newOutputStream(@NonNull Cipher cipher, @NonNull OutputStream out, int chunkSize) {
+        checkChunkSize(chunkSize);
+        return new ChunkedCipherOutputStream(cipher, out, chunkSize);
+    }
+
+    /**
+     * Returns an {@link InputStream} that transforms (encrypts or decrypts, depending on the
+     * cipher mode) the data read from the given stream.
+     *
+     * @param cipher initialized cipher
+     * @param in     input stream
+     * @return cipher input stream
+     */
+    @NonNull
+    public static InputStream newInputStream(@NonNull Cipher cipher, @NonNull InputStream in) {
+        return newInputStream(cipher, in, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Same as {@link #newInputStream(Cipher, InputStream)} with a custom chunk size
+     *
+     * @param cipher    initialized cipher
+     * @param in        input stream
+     * @param chunkSize chunk size in bytes
+     * @return cipher input stream
+     */
+    @NonNull
+    public static InputStream newInputStream(@NonNull Cipher cipher, @NonNull InputStream in, int chunkSize) {
+        checkChunkSize(chunkSize);
+        return new ChunkedCipherInputStream(cipher, in, chunkSize);
+    }
+
+    /**
+     * Transforms the whole input stream into the output stream, finishing the cipher operation.
+     * None of the streams is closed.
+     *
+     * @param cipher initialized cipher
+     * @param in     input stream
+     * @param out    output stream
+     * @return number of bytes written
+     * @throws IOException when any of the streams fails or the cipher operation fails
+     */
+    public static long transform(@NonNull Cipher cipher, @NonNull InputStream in, @NonNull OutputStream out) throws IOException {
+        byte[] input = new byte[DEFAULT_CHUNK_SIZE];
+        byte[] output = new byte[cipher.getOutputSize(DEFAULT_CHUNK_SIZE)];
+        long written = 0;
+        try {
+            int read;
+            while ((read = in.read(input)) != -1) {
+                output = ensureCapacity(output, cipher.getOutputSize(read));
+                int n = cipher.update(input, 0, read, output, 0);
+                out.write(output, 0, n);
+                written += n;
+            }
+            output = ensureCapacity(output, cipher.getOutputSize(0));
+            int n = cipher.doFinal(output, 0);
+            out.write(output, 0, n);
+            written += n;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        return written;
+    }
+
+    /**
+     * Transforms all the remaining bytes of <code>input</code> into <code>output</code>, finishing
+     * the cipher operation. Both buffers may be direct or heap buffers; whether the data is copied
+     * through intermediate arrays depends on the cipher provider.
+     * <p>
+     * Upon return the position of <code>input</code> equals its limit and the position of
+     * <code>output</code> is advanced by the number of bytes written.
+     *
+     * @param cipher initialized cipher
+     * @param input  input buffer
+     * @param output output buffer, it must have room for
+     *               {@link Cipher#getOutputSize(int) cipher.getOutputSize(input.remaining())} bytes
+     * @return number of bytes written into <code>output</code>
+     * @throws ShortBufferException     when there's not enough room in the output buffer
+     * @throws GeneralSecurityException when the cipher operation fails
+     */
+    public static int transform(@NonNull Cipher cipher, @NonNull ByteBuffer input, @NonNull ByteBuffer output)
+            throws GeneralSecurityException {
+        if (output.remaining() < cipher.getOutputSize(input.remaining())) {
+            throw new ShortBufferException("Output buffer too small");
+        }
+
+        int written = 0;
+        int limit = input.limit();
+        try {
+            // feed the cipher in chunks, moving the limit over the input buffer
+            while (input.position() < limit) {
+                input.limit(Math.min(limit, input.position() + DEFAULT_CHUNK_SIZE));
+                written += cipher.update(input, output);
+            }
+            input.limit(limit);
+            // empty input, only flush the pending bytes
+            written += cipher.doFinal(input, output);
+        } finally {
+            input.limit(limit);
+        }
+        return written;
+    }
+
+    private static void checkChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int size) {
+        // grows geometrically, the output size keeps growing while an authenticated mode (GCM)
+        // buffers the data to decrypt
+        return buffer.length >= size ? buffer : new byte[Math.max(size, buffer.length * 2)];
+    }
+
+    /**
+     * Output stream that transforms the data in chunks of fixed size
+     */
+    private static final class ChunkedCipherOutputStream extends FilterOutputStream {
+
+        private final Cipher mCipher;
+        private final int mChunkSize;
+        private final byte[] mSingleByte = new byte[1];
+        private byte[] mOutput;
+        private boolean mClosed;
+
+        ChunkedCipherOutputStream(Cipher cipher, OutputStream out, int chunkSize) {
+            super(out);
+            mCipher = cipher;
+            mChunkSize = chunkSize;
+            mOutput = new byte[cipher.getOutputSize(chunkSize)];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mSingleByte[0] = (byte) b;
+            write(mSingleByte, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            try {
+                while (len > 0) {
+                    int chunk = Math.min(len, mChunkSize);
+                    mOutput = ensureCapacity(mOutput, mCipher.getOutputSize(chunk));
+                    int n = mCipher.update(b, off, chunk, mOutput, 0);
+                    out.write(mOutput, 0, n);
+                    off += chunk;
+                    len -= chunk;
+                }
+            } catch (ShortBufferException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                mOutput = ensureCapacity(mOutput, mCipher.getOutputSize(0));
+                int n = mCipher.doFinal(mOutput, 0);
+                out.write(mOutput, 0, n);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Input stream that transforms the data in chunks of fixed size
+     */
+    private static final class ChunkedCipherInputStream extends FilterInputStream {
+
+        private final Cipher mCipher;
+        private final byte[] mInput;
+        private final byte[] mSingleByte = new byte[1];
+        private byte[] mOutput;
+        private int mOutputPos;
+        private int mOutputEnd;
+        private boolean mDone;
+
+        ChunkedCipherInputStream(Cipher cipher, InputStream in, int chunkSize) {
+            super(in);
+            mCipher = cipher;
+            mInput = new byte[chunkSize];
+            mOutput = new byte[cipher.getOutputSize(chunkSize)];
+        }
+
+        /**
+         * Fills the output buffer
+         *
+         * @return <code>false</code> on end of stream
+         */
+        private boolean fill() throws IOException {
+            try {
+                while (mOutputPos == mOutputEnd) {
+                    if (mDone) {
+                        return false;
+                    }
+                    mOutputPos = 0;
+                    int read = in.read(mInput);
+                    if (read == -1) {
+                        mDone = true;
+                        mOutput = ensureCapacity(mOutput, mCipher.getOutputSize(0));
+                        mOutputEnd = mCipher.doFinal(mOutput, 0);
+                    } else {
+                        mOutput = ensureCapacity(mOutput, mCipher.getOutputSize(read));
+                        mOutputEnd = mCipher.update(mInput, 0, read, mOutput, 0);
+                    }
+                }
+                return true;
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(mSingleByte, 0, 1);
+            return n == -1 ? -1 : mSingleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, mOutputEnd - mOutputPos);
+            System.arraycopy(mOutput, mOutputPos, b, off, n);
+            mOutputPos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && fill()) {
+                int chunk = (int) Math.min(n - skipped, mOutputEnd - mOutputPos);
+                mOutputPos += chunk;
+                skipped += chunk;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mOutputEnd - mOutputPos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+    }
+}
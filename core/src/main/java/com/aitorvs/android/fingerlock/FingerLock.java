@@ -20,14 +20,16 @@
 
 package com.aitorvs.android.fingerlock;
 
+import android.app.Activity;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -37,24 +39,41 @@ public final class FingerLock extends Fragment implements FingerLockManager {
     private static final String ARG_KEY_NAME = "ARG_KEY_NAME";
     private static final String TAG = FingerLock.class.getSimpleName();
     private static final String TAG_FINGER_LOCK_FRAGMENT = "TagFingerLockFragment";
-    private FingerLockApi.FingerLockImpl impl;
-    private Context mContext;
+    // lifecycle-independent engine, this fragment opens and closes it along with the activity
+    private FingerLockEngine mEngine;
     private FingerLockResultCallback mCallback;
 
+    // host callback as added to the listeners, wrapped when events are not delivered in the main thread
+    private FingerLockResultCallback mHostListener;
+
+    // handler to deliver the sensor events, null for the main thread
+    private Handler mCallbackHandler;
+
+    // keep the registration alive across configuration changes
+    private boolean mRetainSession;
+
+    // registration kept alive while the activity is re-created
+    private boolean mSessionRetained;
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        this.impl = FingerLockApi.create();
-        if (BuildConfig.DEBUG) Log.d(TAG, "onCreate: called");
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "onCreate: called");
     }
 
     @Override
     public void onAttach(Context context) {
         super.onAttach(context);
-        mContext = context;
+        if (mEngine == null) {
+            // retained fragments keep their engine
+            Bundle arguments = getArguments();
+            mEngine = new FingerLockEngine(context, arguments != null ? arguments.getString(ARG_KEY_NAME) : null);
+            mEngine.setCallbackHandler(mCallbackHandler);
+        }
 
         if (context instanceof FingerLockResultCallback) {
             mCallback = (FingerLockResultCallback) context;
+            attachHostListener();
         } else {
             throw new IllegalStateException("Callback listener not implemented");
         }
@@ -63,26 +82,52 @@ public final class FingerLock extends Fragment implements FingerLockManager {
     @Override
     public void onResume() {
         super.onResume();
-        Bundle arguments = getArguments();
 
-        if (arguments != null) {
-            String keyName = arguments.getString(ARG_KEY_NAME);
-            impl.register(mContext, keyName, mCallback);
+        if (mSessionRetained && mEngine.isOpen()) {
+            // same registration, only the callback changed. Tell the new one where we are
+            mEngine.dispatchState();
+        } else {
+            mEngine.open();
         }
+        mSessionRetained = false;
 
-        if (BuildConfig.DEBUG) Log.d(TAG, "onResume: called");
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "onResume: called");
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        impl.unregister(mCallback);
-        if (BuildConfig.DEBUG) Log.d(TAG, "onPause: called");
+        Activity activity = getActivity();
+        if (mRetainSession && activity != null && activity.isChangingConfigurations()) {
+            // activity will be re-created right away, keep scanning
+            mSessionRetained = true;
+        } else {
+            mEngine.close();
+        }
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "onPause: called");
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // not re-created after all when the session was retained
+        mSessionRetained = false;
+        mEngine.close();
+    }
+
+    @Override
+    public void onDetach() {
+        super.onDetach();
+        if (mHostListener != null) {
+            detachHostListener();
+        }
+        mCallback = null;
     }
 
 
     /**
-     * Call this method to initialize the library
+     * Call this method to initialize the library. It can be called with different key names to
+     * use several keys at the same time, each one gets its own library reference.
      *
      * @param activity {@link AppCompatActivity} object
      * @param keyName  key name
@@ -94,19 +139,95 @@ public final class FingerLock extends Fragment implements FingerLockManager {
             return null;
         }
 
-        // Have we created the fragment before ?
-        FingerLock fragment = (FingerLock) activity.getSupportFragmentManager().findFragmentByTag(TAG_FINGER_LOCK_FRAGMENT);
+        // Have we created the fragment before ? One fragment per key
+        FingerLock fragment = find(activity, keyName);
         if (fragment == null) {
             fragment = createInstance(keyName);
-            activity.getSupportFragmentManager()
-                    .beginTransaction()
-                    .add(fragment, TAG_FINGER_LOCK_FRAGMENT)
-                    .commitNow();
+            attach(activity, fragment, keyName);
         }
 
         return fragment;
     }
 
+    /**
+     * Call this method to initialize the library lazily, e.g. in the launcher activity when most
+     * sessions never reach the lock screen. It returns right away a lightweight reference that
+     * defers all the work (fragment attach, fingerprint system service lookup, key creation) to
+     * the first call to {@link FingerLockManager#start()} or
+     * {@link FingerLockManager#isFingerprintAuthSupported()}.
+     * <p>
+     * The library is registered, and {@link FingerLockResultCallback#onFingerLockReady()}
+     * delivered, upon that first call. A <code>start()</code> call made before the activity
+     * is resumed is served by <code>onFingerLockReady()</code> once resumed.
+     *
+     * @param activity {@link AppCompatActivity} object
+     * @param keyName  key name
+     * @return library reference
+     */
+    public static FingerLockManager initializeLazily(@NonNull AppCompatActivity activity, @NonNull String keyName) {
+        //noinspection ConstantConditions
+        if (activity == null) {
+            return null;
+        }
+
+        // already created, e.g. when the session is retained
+        FingerLock fragment = find(activity, keyName);
+        if (fragment != null) {
+            return fragment;
+        }
+        return new LazyFingerLockManager(activity, keyName);
+    }
+
+    @Nullable
+    static FingerLock find(@NonNull AppCompatActivity activity, @NonNull String keyName) {
+        return (FingerLock) activity.getSupportFragmentManager().findFragmentByTag(TAG_FINGER_LOCK_FRAGMENT + ":" + keyName);
+    }
+
+    /**
+     * {@hide}
+     * Adds the fragment to the activity, it moves right away to the activity state
+     */
+    static void attach(@NonNull AppCompatActivity activity, @NonNull FingerLock fragment, @NonNull String keyName) {
+        activity.getSupportFragmentManager()
+                .beginTransaction()
+                .add(fragment, TAG_FINGER_LOCK_FRAGMENT + ":" + keyName)
+                .commitNow();
+    }
+
+    /**
+     * {@hide}
+     * Creates the library along with its engine so that it can be configured before attaching it
+     *
+     * @param context any context
+     * @param keyName key name
+     * @return uninitialized library reference
+     */
+    static FingerLock createInstance(@NonNull Context context, @NonNull String keyName) {
+        FingerLock fragment = createInstance(keyName);
+        fragment.mEngine = new FingerLockEngine(context, keyName);
+        return fragment;
+    }
+
+    /**
+     * Call this method to warm up the library before the first screen needs it, e.g. from
+     * <code>Application.onCreate()</code>. It loads the key store, resolves the fingerprint system
+     * service and creates the missing keys so that {@link FingerLockResultCallback#onFingerLockReady()}
+     * arrives with almost no delay later on.
+     * <p>
+     * This method blocks on key store I/O, call it from a background thread.
+     *
+     * @param context  any context, the application context is used
+     * @param keyNames key names that will be used later in {@link #initialize(AppCompatActivity, String)}
+     */
+    @WorkerThread
+    public static void prewarm(@NonNull Context context, @NonNull String... keyNames) {
+        //noinspection ConstantConditions
+        if (context == null || keyNames == null) {
+            return;
+        }
+        FingerLockApi.prewarm(context, keyNames);
+    }
+
     /**
      * Convenience method to create the library without initialize it
      *
@@ -129,7 +250,7 @@ public final class FingerLock extends Fragment implements FingerLockManager {
      */
     @Override
     public boolean isFingerprintAuthSupported() {
-        return impl.isFingerprintAuthSupported();
+        return mEngine.isFingerprintAuthSupported();
     }
 
     /**
@@ -139,7 +260,7 @@ public final class FingerLock extends Fragment implements FingerLockManager {
      */
     @Override
     public boolean isFingerprintRegistered() {
-        return impl.isFingerprintRegistered();
+        return mEngine.isFingerprintRegistered();
     }
 
     /**
@@ -147,7 +268,20 @@ public final class FingerLock extends Fragment implements FingerLockManager {
      */
     @Override
     public void start() {
-        impl.start();
+        mEngine.start();
+    }
+
+    /**
+     * Call this method to start fingerprint scanning with a {@link javax.crypto.Cipher} bound to
+     * the authentication
+     *
+     * @param cipherMode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+     *                   {@link javax.crypto.Cipher#DECRYPT_MODE}
+     * @param iv         initialization vector, required to decrypt
+     */
+    @Override
+    public void start(int cipherMode, @Nullable byte[] iv) {
+        mEngine.start(cipherMode, iv);
     }
 
     /**
@@ -155,17 +289,143 @@ public final class FingerLock extends Fragment implements FingerLockManager {
      */
     @Override
     public void stop() {
-        impl.stop();
+        mEngine.stop();
     }
 
     @Override
     public void recreateKey(@NonNull final FingerLockResultCallback listener) {
         //noinspection ConstantConditions
-        if (listener != null) {
-            impl.recreateKey(listener);
+        if (listener != null && listener == mCallback) {
+            // the host callback may be wrapped
+            mEngine.recreateKey(mHostListener);
+        } else {
+            mEngine.recreateKey(listener);
         }
     }
 
+    /**
+     * Call this method to receive the library events in an additional listener, e.g. for
+     * analytics or session management. The events are delivered to all the listeners.
+     *
+     * @param listener listener to add
+     */
+    @Override
+    public void addFingerLockListener(@NonNull FingerLockResultCallback listener) {
+        mEngine.addFingerLockListener(listener);
+    }
+
+    /**
+     * Call this method to stop receiving the library events in a listener previously added. It's
+     * safe to call it from inside a callback.
+     *
+     * @param listener listener to remove
+     */
+    @Override
+    public void removeFingerLockListener(@NonNull FingerLockResultCallback listener) {
+        mEngine.removeFingerLockListener(listener);
+    }
+
+    @Nullable
+    @Override
+    public FingerLockSession getSession() {
+        return mEngine.getSession();
+    }
+
+    /**
+     * Call this method to deliver the sensor events in the thread of the given handler. The host
+     * activity keeps receiving them in the main thread.
+     *
+     * @param handler handler to deliver the sensor events, <code>null</code> for the main thread
+     */
+    @Override
+    public void setCallbackHandler(@Nullable Handler handler) {
+        mCallbackHandler = handler;
+        if (mEngine != null) {
+            mEngine.setCallbackHandler(handler);
+        }
+        if (mCallback != null) {
+            attachHostListener();
+        }
+    }
+
+    private void attachHostListener() {
+        if (mHostListener != null) {
+            detachHostListener();
+        }
+        mHostListener = mCallbackHandler != null ? new MainThreadCallback(mCallback) : mCallback;
+        mEngine.addFingerLockListener(mHostListener);
+    }
+
+    private void detachHostListener() {
+        mEngine.removeFingerLockListener(mHostListener);
+        if (mHostListener instanceof MainThreadCallback) {
+            // events still queued for the previous activity
+            ((MainThreadCallback) mHostListener).release();
+        }
+        mHostListener = null;
+    }
+
+    /**
+     * Call this method to keep the authentication session alive across configuration changes.
+     * The library fragment is retained and only the callback is re-attached to the new activity.
+     *
+     * @param retain <code>true</code> to retain the session
+     */
+    @Override
+    public void setRetainSession(boolean retain) {
+        mRetainSession = retain;
+        setRetainInstance(retain);
+    }
+
+    /**
+     * Call this method to set the generation parameters of a key, before it is created. Keys
+     * created with the default parameters require the user to authenticate for every use.
+     * Already existing keys keep their parameters until they are recreated.
+     *
+     * @param keyName key name
+     * @param spec    key generation parameters
+     */
+    public static void configureKey(@NonNull String keyName, @NonNull FingerLockKeySpec spec) {
+        //noinspection ConstantConditions
+        if (keyName == null || spec == null) {
+            return;
+        }
+        FingerLockApi.configureKey(keyName, spec);
+    }
+
+    /**
+     * Call this method to receive the timings of the library phases (key validation, key
+     * generation, sensor latency) and the errors reported to the listeners, process-wide.
+     * See {@link FingerLockMetrics}.
+     *
+     * @param listener metrics listener, <code>null</code> to stop the metrics
+     */
+    public static void setMetricsListener(@Nullable FingerLockMetricsListener listener) {
+        Metrics.setListener(listener);
+    }
+
+    /**
+     * Call this method to receive the library logs, process-wide. The library does not log by
+     * default and no log message is built while there's no logger.
+     *
+     * @param logger logger, e.g. {@link FingerLockLogger#LOGCAT}, <code>null</code> to stop logging
+     */
+    public static void setLogger(@Nullable FingerLockLogger logger) {
+        FingerLockLog.setLogger(logger);
+    }
+
+    /**
+     * Call this method to let the library start the sensor again on its own after a lockout or a
+     * transient error, process-wide. By default the sensor stays stopped after any error.
+     * See {@link FingerLockRestartPolicy}.
+     *
+     * @param policy restart policy, e.g. {@link FingerLockRestartPolicy#DEFAULT}, <code>null</code>
+     *               to stop restarting the sensor
+     */
+    public static void setRestartPolicy(@Nullable FingerLockRestartPolicy policy) {
+        RestartScheduler.setPolicy(policy);
+    }
+
     /**
      * Error state
      */
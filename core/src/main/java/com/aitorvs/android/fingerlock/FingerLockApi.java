@@ -21,14 +21,52 @@
 package com.aitorvs.android.fingerlock;
 
 import android.content.Context;
+import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import javax.crypto.Cipher;
 
 /**
  * {@hide}
  */
 final class FingerLockApi {
 
+    private static FingerLockImpl sShared;
+
+    // replaces the platform selection, e.g. to run against the simulator
+    private static volatile Factory sFactory;
+
+    /**
+     * {@hide}
+     * Creates the implementation in place of the platform one
+     */
+    interface Factory {
+        @NonNull
+        FingerLockImpl create();
+    }
+
+    /**
+     * {@hide}
+     * Returns the process-wide implementation. All the registrations live in the same instance,
+     * each one with its own key, so that registering one does not disturb the others.
+     * Main thread only.
+     *
+     * @return shared implementation
+     */
+    public static FingerLockImpl shared() {
+        if (sShared == null) {
+            sShared = create();
+        }
+        return sShared;
+    }
+
     public static FingerLockImpl create() {
+        Factory factory = sFactory;
+        if (factory != null && canLoadApi23()) {
+            return factory.create();
+        }
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
             return new FingerLockApi23();
         } else {
@@ -37,6 +75,114 @@ final class FingerLockApi {
         }
     }
 
+    /**
+     * {@hide}
+     * Sets the factory of the implementation, <code>null</code> to go back to the platform one.
+     * The factory implementations run on top of the {@link FingerLockApi23} internals, so the
+     * factory is ignored where they can't be loaded, see {@link #canLoadApi23()}. The shared
+     * implementation is dropped, the registrations in it are lost.
+     *
+     * @param factory implementation factory
+     */
+    static void setFactory(@Nullable Factory factory) {
+        sFactory = factory;
+        sShared = null;
+    }
+
+    private static boolean hasFingerprintApi() {
+        return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M
+                || (sFactory != null && canLoadApi23());
+    }
+
+    /**
+     * {@hide}
+     * Returns <code>true</code> when the {@link FingerLockApi23} internals can be loaded: on
+     * Android 6.0 (API 23) and later, and on the JVM along with the mockable android.jar. Older
+     * Android versions lack the fingerprint framework classes they build on.
+     *
+     * @return <code>true</code> when the API 23 internals can be loaded
+     */
+    static boolean canLoadApi23() {
+        return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M
+                || !"Dalvik".equals(System.getProperty("java.vm.name"));
+    }
+
+    /**
+     * {@hide}
+     * Warm up the library internals ahead of time. No-op on devices without fingerprint API
+     * support.
+     *
+     * @param context  any context
+     * @param keyNames key names to warm up
+     */
+    @WorkerThread
+    static void prewarm(@NonNull Context context, @NonNull String... keyNames) {
+        if (hasFingerprintApi()) {
+            FingerLockApi23.prewarm(context, keyNames);
+        }
+    }
+
+    /**
+     * {@hide}
+     * Returns <code>true</code> when fingerprint authentication is available and supported, without
+     * the need of a registration. Uses the cached capabilities when available.
+     *
+     * @param context any context
+     * @return <code>true</code> when supported
+     */
+    static boolean isFingerprintAuthSupported(@NonNull Context context) {
+        return hasFingerprintApi()
+                && FingerLockApi23.capabilities(context).isFingerprintAuthSupported();
+    }
+
+    /**
+     * {@hide}
+     * Returns <code>true</code> when the user has at least one fingerprint registered, without the
+     * need of a registration. Uses the cached capabilities when available.
+     *
+     * @param context any context
+     * @return <code>true</code> when at least one fingerprint is registered
+     */
+    static boolean isFingerprintRegistered(@NonNull Context context) {
+        return hasFingerprintApi()
+                && FingerLockApi23.capabilities(context).isFingerprintRegistered();
+    }
+
+    /**
+     * {@hide}
+     * Checks the arguments of a start with a cipher bound to the authentication. The key store
+     * generates the IV to encrypt, randomized encryption is required, and needs one to decrypt.
+     *
+     * @throws IllegalArgumentException when the arguments are not valid
+     */
+    static void checkCipherArguments(int cipherMode, @Nullable byte[] iv) {
+        if (cipherMode == Cipher.ENCRYPT_MODE) {
+            if (iv != null) {
+                throw new IllegalArgumentException("The key store generates the IV, pass null to encrypt");
+            }
+        } else if (cipherMode == Cipher.DECRYPT_MODE) {
+            if (iv == null) {
+                throw new IllegalArgumentException("The IV is required to decrypt");
+            }
+        } else {
+            throw new IllegalArgumentException("cipherMode must be either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE");
+        }
+    }
+
+    /**
+     * {@hide}
+     * Sets the generation parameters of the given key. No-op on devices without fingerprint API
+     * support.
+     *
+     * @param keyName key name
+     * @param spec    key generation parameters
+     */
+    static void configureKey(@NonNull String keyName, @NonNull FingerLockKeySpec spec) {
+        if (hasFingerprintApi()) {
+            KeyRegistry.configure(keyName, spec);
+        }
+    }
+
     /**
      * {@hide}
      */
@@ -63,6 +209,37 @@ final class FingerLockApi {
          */
         void start();
 
+        /**
+         * {@hide}
+         * Call this method to start fingerprint scanning for the given listener. There's only one
+         * sensor, any other registration that is scanning stops (but remains registered).
+         *
+         * @param listener previously registered listener
+         */
+        void start(@NonNull FingerLockResultCallback listener);
+
+        /**
+         * {@hide}
+         * Call this method to start fingerprint scanning with a {@link javax.crypto.Cipher} bound
+         * to the authentication
+         *
+         * @param cipherMode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+         *                   {@link javax.crypto.Cipher#DECRYPT_MODE}
+         * @param iv         initialization vector, required to decrypt
+         */
+        void start(int cipherMode, @Nullable byte[] iv);
+
+        /**
+         * {@hide}
+         * Same as {@link #start(int, byte[])} for the given listener
+         *
+         * @param listener   previously registered listener
+         * @param cipherMode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+         *                   {@link javax.crypto.Cipher#DECRYPT_MODE}
+         * @param iv         initialization vector, required to decrypt
+         */
+        void start(@NonNull FingerLockResultCallback listener, int cipherMode, @Nullable byte[] iv);
+
         /**
          * {@hide}
          * Call this method to force stopping fingerprint scanning
@@ -71,7 +248,16 @@ final class FingerLockApi {
 
         /**
          * {@hide}
-         * Register a fingerprint activity listener
+         * Call this method to force stopping fingerprint scanning for the given listener
+         *
+         * @param listener previously registered listener
+         */
+        void stop(@NonNull FingerLockResultCallback listener);
+
+        /**
+         * {@hide}
+         * Register a fingerprint activity listener. Several listeners can be registered at the
+         * same time, each one with its own key.
          *
          * @param context  caller context
          * @param keyName  key name
@@ -79,6 +265,20 @@ final class FingerLockApi {
          */
         void register(@NonNull Context context, @NonNull final String keyName, @NonNull FingerLockResultCallback callback);
 
+        /**
+         * {@hide}
+         * Register a fingerprint activity listener whose sensor events (authentication succeeded,
+         * not recognized, help and errors) are delivered in the thread of the given handler
+         *
+         * @param context         caller context
+         * @param keyName         key name
+         * @param callback        callbacks
+         * @param callbackHandler handler to deliver the sensor events, <code>null</code> for the
+         *                        main thread
+         */
+        void register(@NonNull Context context, @NonNull final String keyName, @NonNull FingerLockResultCallback callback,
+                      @Nullable Handler callbackHandler);
+
         /**
          * {@hide}
          * Call this method to avoid any memory leakage. Good place is <code>onPause</code>
@@ -90,9 +290,38 @@ final class FingerLockApi {
 
         boolean inUseBy(FingerLockResultCallback listener);
 
+        /**
+         * {@hide}
+         * Returns <code>true</code> when the registration of the given listener is scanning
+         *
+         * @param listener previously registered listener
+         * @return <code>true</code> when scanning
+         */
+        boolean isScanning(@NonNull FingerLockResultCallback listener);
+
         /**{@hide}
          * Recreate the secret key.
          */
         void recreateKey(FingerLockResultCallback listener);
+
+        /**
+         * {@hide}
+         * Returns the authentication session of the registered time-bound key
+         *
+         * @return valid session or <code>null</code>
+         */
+        @Nullable
+        FingerLockSession getSession();
+
+        /**
+         * {@hide}
+         * Returns the authentication session of the time-bound key registered by the given
+         * listener
+         *
+         * @param listener previously registered listener
+         * @return valid session or <code>null</code>
+         */
+        @Nullable
+        FingerLockSession getSession(@NonNull FingerLockResultCallback listener);
     }
 }
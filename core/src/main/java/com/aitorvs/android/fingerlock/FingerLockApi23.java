@@ -22,173 +22,548 @@ package com.aitorvs.android.fingerlock;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
+import android.os.Handler;
+import android.security.keystore.UserNotAuthenticatedException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.content.ContextCompat;
-import android.util.Log;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
 
 import java.security.InvalidParameterException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
 
 @TargetApi(Build.VERSION_CODES.M)
 class FingerLockApi23 implements FingerLockApi.FingerLockImpl {
 
     private static final String TAG = FingerLockApi23.class.getSimpleName();
-    private FingerprintAuthHandler mAuthenticationHandler;
-    private Context mContext;
-    private Key mKey;
-    private FingerLockResultCallback mCallback;
+
+    // plain authentication, no cipher bound to it
+    private static final int NO_CIPHER = -1;
+
+    // registrations by listener. Every listener has its own key and authentication handler so
+    // that registering one does not disturb the others
+    private final ConcurrentMap<FingerLockResultCallback, Registration> mRegistrations = new ConcurrentHashMap<>();
+
+    // most recent registration, target of the calls that do not specify the listener
+    private final AtomicReference<Registration> mCurrent = new AtomicReference<>();
+
+    // registration currently scanning, there's only one sensor
+    private final AtomicReference<Registration> mScanning = new AtomicReference<>();
 
     // specific of the implementation for API >=23
-    private FingerprintManager mFingerprintManager;
+    private volatile FingerprintSensor mSensor;
 
-    @Override
-    public boolean isFingerprintAuthSupported() {
-        invalidContext();
+    // process-wide sensor, the system one is resolved once
+    private static volatile FingerprintSensor sSensor;
 
-        // check permissions
-        int granted = ContextCompat.checkSelfPermission(mContext, android.Manifest.permission.USE_FINGERPRINT);
-        if (granted != PackageManager.PERMISSION_GRANTED) {
-            // not granted
-            return false;
+    /**
+     * A registered listener along with its key and authentication state. It's
+     * {@link AuthState#REGISTERED} until unregistered, then {@link AuthState#IDLE} for good
+     */
+    private static final class Registration {
+        final FingerLockResultCallback callback;
+        final Context context;
+        final Key key;
+        final AtomicInteger state = new AtomicInteger(AuthState.REGISTERED);
+        final Handler callbackHandler;
+        final AtomicReference<FingerprintAuthHandler> authenticationHandler = new AtomicReference<>();
+        // re-arms the sensor after errors, set before the registration is published
+        RestartScheduler restart;
+        // last start request, repeated by the restarts
+        volatile int cipherMode = NO_CIPHER;
+        volatile byte[] iv;
+
+        Registration(@NonNull FingerLockResultCallback callback, @NonNull Context context, @NonNull Key key,
+                     @Nullable Handler callbackHandler) {
+            this.callback = callback;
+            this.context = context;
+            this.key = key;
+            this.callbackHandler = callbackHandler;
         }
 
-        // return hardware support
-        //noinspection MissingPermission
-        return mFingerprintManager != null
-                && mFingerprintManager.isHardwareDetected()
-                && mFingerprintManager.hasEnrolledFingerprints();
+        boolean isRegistered() {
+            return state.get() == AuthState.REGISTERED;
+        }
 
+        boolean isScanning() {
+            FingerprintAuthHandler handler = authenticationHandler.get();
+            return handler != null && handler.isStarted();
+        }
+    }
+
+    /**
+     * {@hide}
+     * Resolves the fingerprint system service, loads the key store and creates the missing keys
+     * ahead of time. It may block, call it from a background thread.
+     *
+     * @param context  any context, the application context is used
+     * @param keyNames key names to warm up
+     */
+    @WorkerThread
+    static void prewarm(@NonNull Context context, @NonNull String... keyNames) {
+        FingerprintSensor sensor = sensor(context);
+
+        // load the key store and build the key handles
+        KeyRegistry.keyStore();
+
+        // keys can only be created when there are fingerprints enrolled
+        boolean canCreateKeys = FingerprintCapabilities.refresh(context, sensor).isFingerprintRegistered();
+
+        for (String keyName : keyNames) {
+            Key key = KeyRegistry.obtain(keyName);
+            try {
+                key.isKeyValid();
+            } catch (NullKeyException e) {
+                if (canCreateKeys) {
+                    key.recreateKey();
+                }
+            }
+        }
+
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "prewarm: done");
+    }
+
+    @NonNull
+    static FingerprintCapabilities capabilities(@NonNull Context context) {
+        return FingerprintCapabilities.current(context, sensor(context));
+    }
+
+    @Nullable
+    private static FingerprintSensor sensor(@NonNull Context context) {
+        if (sSensor == null) {
+            Context appContext = context.getApplicationContext();
+            FingerprintManager fpm = (FingerprintManager) (appContext != null ? appContext : context)
+                    .getSystemService(Context.FINGERPRINT_SERVICE);
+            if (fpm != null) {
+                sSensor = new FingerprintSensor.SystemSensor(fpm);
+            }
+        }
+        return sSensor;
+    }
+
+    /**
+     * {@hide}
+     * Replaces the process-wide fingerprint sensor, the system one by default. The cached
+     * capabilities are dropped.
+     *
+     * @param sensor fingerprint sensor, <code>null</code> to go back to the system one
+     */
+    @VisibleForTesting
+    static void setSensor(@Nullable FingerprintSensor sensor) {
+        sSensor = sensor;
+        FingerprintCapabilities.invalidate();
+    }
+
+    @Override
+    public boolean isFingerprintAuthSupported() {
+        Registration registration = current();
+
+        // cached snapshot, refreshed on every registration
+        return FingerprintCapabilities.current(registration.context, mSensor).isFingerprintAuthSupported();
     }
 
     @Override
     public boolean isFingerprintRegistered() {
+        Registration registration = current();
+
+        return FingerprintCapabilities.current(registration.context, mSensor).isFingerprintRegistered();
+    }
+
+    @Override
+    public void start() {
+        start(current());
+    }
+
+    @Override
+    public void start(@NonNull FingerLockResultCallback listener) {
+        start(registered(listener));
+    }
+
+    private void start(@NonNull Registration registration) {
+        registration.cipherMode = NO_CIPHER;
+        registration.iv = null;
+        registration.restart.cancel();
         if (!isFingerprintAuthSupported()) {
-            return false;
+            FingerLockError.report(registration.callback, FingerLockError.NOT_SUPPORTED);
+        } else if (!startAuthentication(registration, null)) {
+            // auth handler already listening or unregistered in the meantime...do nothing
+        } else {
+            // key store work happens off the main thread, result is reported back in the main
+            // thread through onFingerLockScanning()
+            registration.key.isKeyValidAsync(new KeyResultCallback(registration));
         }
+    }
 
-        // no need to check for permissions, as it's done inside previous call
-        //noinspection MissingPermission
-        return mFingerprintManager != null && mFingerprintManager.hasEnrolledFingerprints();
+    @Override
+    public void start(int cipherMode, @Nullable byte[] iv) {
+        start(current(), cipherMode, iv);
     }
 
     @Override
-    public void start() {
+    public void start(@NonNull FingerLockResultCallback listener, int cipherMode, @Nullable byte[] iv) {
+        start(registered(listener), cipherMode, iv);
+    }
+
+    private void start(@NonNull Registration registration, final int cipherMode, @Nullable final byte[] iv) {
+        if (registration.key.spec().isTimeBound()) {
+            throw new IllegalStateException("Time-bound keys cannot be bound to the authentication, use start() and getSession()");
+        }
+        FingerLockApi.checkCipherArguments(cipherMode, iv);
+        registration.cipherMode = cipherMode;
+        registration.iv = iv;
+        registration.restart.cancel();
         if (!isFingerprintAuthSupported()) {
-            mCallback.onFingerLockError(FingerLock.FINGERPRINT_NOT_SUPPORTED, new Exception("Fingerprint authentication not supported in this device"));
-        } else if (mAuthenticationHandler != null && mAuthenticationHandler.isStarted()) {
-            // auth handler already listening...do nothing
+            FingerLockError.report(registration.callback, FingerLockError.NOT_SUPPORTED);
         } else {
-            try {
-                mAuthenticationHandler = new FingerprintAuthHandler(null, mCallback);
-                //noinspection MissingPermission
-                mAuthenticationHandler.start(mFingerprintManager);
+            // a running session, plain or not, is replaced once the cipher is ready, see
+            // startWithCipher()
+            final Key key = registration.key;
+            final KeyResultCallback callback = new KeyResultCallback(registration);
 
-                mCallback.onFingerLockScanning(!mKey.isKeyValid());
-            } catch (NullKeyException e) {
-                // key is not yet created. Create it and retry
-                mKey.recreateKey();
-                try {
-                    mCallback.onFingerLockScanning(!mKey.isKeyValid());
-                } catch (NullKeyException e1) {
-                    // something went wrong unregister and notify
-                    stop();
-                    mCallback.onFingerLockError(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR, new Exception("Key creation failed."));
+            // cipher initialization hits the key store, do it off the main thread and start the
+            // authentication once ready
+            KeyExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Cipher cipher;
+                    try {
+                        cipher = key.newCipher(cipherMode, iv);
+                    } catch (NullKeyException e) {
+                        // key is not yet created. Create it and retry
+                        key.recreateKey();
+                        try {
+                            cipher = key.newCipher(cipherMode, iv);
+                        } catch (NullKeyException | UserNotAuthenticatedException e1) {
+                            postError(callback, FingerLockError.KEY_CREATION_FAILED);
+                            return;
+                        } catch (RuntimeException e1) {
+                            FingerLockLog.e(TAG, "start: cipher initialization failed", e1);
+                            postError(callback, FingerLockError.CIPHER_INIT_FAILED);
+                            return;
+                        }
+                    } catch (UserNotAuthenticatedException e) {
+                        // only time-bound keys, and they're not allowed here
+                        postError(callback, FingerLockError.KEY_CREATION_FAILED);
+                        return;
+                    } catch (RuntimeException e) {
+                        // the key store rejected the initialization, e.g. an IV of the wrong size
+                        FingerLockLog.e(TAG, "start: cipher initialization failed", e);
+                        postError(callback, FingerLockError.CIPHER_INIT_FAILED);
+                        return;
+                    }
+
+                    final Cipher authCipher = cipher;
+                    KeyExecutor.postToMain(new Runnable() {
+                        @Override
+                        public void run() {
+                            startWithCipher(callback, authCipher);
+                        }
+                    });
                 }
-            }
+            });
+        }
+    }
+
+    private void startWithCipher(@NonNull KeyResultCallback callback, @Nullable Cipher cipher) {
+        Registration registration = callback.mRegistration;
+        if (!registration.isRegistered()) {
+            // unregistered in the meantime
+            return;
+        }
+        if (cipher == null) {
+            // the key was invalidated, no way to authorize the cipher
+            callback.onFingerLockScanning(true);
+            return;
+        }
+
+        // someone may have started plain scanning in the meantime, it's replaced by the session
+        // with the crypto object
+        if (startAuthentication(registration, cipher)) {
+            callback.onFingerLockScanning(false);
+        }
+    }
+
+    /**
+     * Starts a new authentication session for the registration. Plain sessions are not restarted
+     * when already scanning, crypto sessions replace the running one.
+     *
+     * @return <code>true</code> when the new session was started
+     */
+    private boolean startAuthentication(@NonNull Registration registration, @Nullable Cipher cipher) {
+        FingerprintAuthHandler current = registration.authenticationHandler.get();
+        if (cipher == null && current != null && current.isStarted()) {
+            return false;
+        }
+
+        FingerprintAuthHandler handler = new FingerprintAuthHandler(cipher, registration.key, registration.callback,
+                registration.restart);
+        if (!registration.authenticationHandler.compareAndSet(current, handler)) {
+            // someone else started or stopped in the meantime, their session wins
+            return false;
+        }
+        if (current != null) {
+            current.stop();
+        }
+        registration.restart.cancel();
+
+        Registration other = mScanning.getAndSet(registration);
+        if (other != null && other != registration) {
+            // there's only one sensor, the other registration stops scanning but stays registered
+            stopHandler(other);
+        }
+
+        if (!registration.isRegistered()) {
+            // unregistered while starting, unregister() may have missed the new handler
+            stop(registration);
+            return false;
         }
+        //noinspection MissingPermission
+        return handler.start(mSensor, registration.callbackHandler);
+    }
+
+    private static void postError(@NonNull final FingerLockResultCallback callback, @NonNull final FingerLockError error) {
+        KeyExecutor.postToMain(new Runnable() {
+            @Override
+            public void run() {
+                FingerLockError.report(callback, error);
+            }
+        });
     }
 
     @Override
     public void stop() {
-        if (mAuthenticationHandler != null) {
-            // cancel and flag it as self cancelled
-            mAuthenticationHandler.stop(true);
+        Registration registration = mCurrent.get();
+        if (registration != null) {
+            stop(registration);
+        }
+    }
+
+    @Override
+    public void stop(@NonNull FingerLockResultCallback listener) {
+        Registration registration = mRegistrations.get(listener);
+        if (registration != null) {
+            stop(registration);
+        }
+    }
+
+    private void stop(@NonNull Registration registration) {
+        stopHandler(registration);
+        mScanning.compareAndSet(registration, null);
+    }
+
+    private static void stopHandler(@NonNull Registration registration) {
+        // a stopped sensor stays stopped
+        registration.restart.cancel();
+        FingerprintAuthHandler handler = registration.authenticationHandler.get();
+        if (handler != null) {
+            // cancelled sessions drop any late sensor event
+            handler.stop();
         }
     }
 
     @Override
     public void register(@NonNull Context context, @NonNull final String keyName, @NonNull FingerLockResultCallback callback) {
+        register(context, keyName, callback, null);
+    }
+
+    @Override
+    public void register(@NonNull Context context, @NonNull final String keyName, @NonNull FingerLockResultCallback callback,
+                         @Nullable Handler callbackHandler) {
         // double check
         //noinspection ConstantConditions
         if (context == null || callback == null || keyName == null) {
             throw new InvalidParameterException("Invalid or null input parameters");
-        } else if (mCallback != null) {
-            // already registered, force clean unregister
-            forceUnregister();
         }
-        if(BuildConfig.DEBUG) Log.d(TAG, "Registering " + keyName);
 
-        mContext = context;
-        mCallback = callback;
-        mKey = new Key(keyName);
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "Registering " + keyName);
 
-        mFingerprintManager = getFingerprintManager();
+        mSensor = sensor(context);
 
-        if (!isFingerprintAuthSupported()) {
-            callback.onFingerLockError(FingerLock.FINGERPRINT_NOT_SUPPORTED, new Exception("Fingerprint authentication not supported in this device"));
-        } else if (!isFingerprintRegistered()) {
-            callback.onFingerLockError(FingerLock.FINGERPRINT_REGISTRATION_NEEDED, new Exception("No fingerprints registered in this device"));
+        // registrations may outlive the activity when the session is retained, never hold it
+        Context appContext = context.getApplicationContext();
+        final Registration registration = new Registration(callback, appContext != null ? appContext : context,
+                KeyRegistry.obtain(keyName), callbackHandler);
+        registration.restart = new RestartScheduler(new Runnable() {
+            @Override
+            public void run() {
+                restart(registration);
+            }
+        });
+        Registration previous = mRegistrations.put(callback, registration);
+        if (previous != null) {
+            // same listener registering again, clean up its previous registration only
+            unregister(previous);
+        }
+        mCurrent.set(registration);
+
+        // capabilities may have changed while paused (e.g. permission revoked or fingerprint
+        // enrolled), refresh the snapshot
+        FingerprintCapabilities capabilities = FingerprintCapabilities.refresh(context, mSensor);
+
+        if (!capabilities.isFingerprintAuthSupported()) {
+            FingerLockError.report(callback, FingerLockError.NOT_SUPPORTED);
+        } else if (!capabilities.isFingerprintRegistered()) {
+            FingerLockError.report(callback, FingerLockError.REGISTRATION_NEEDED);
         } else {
             // all systems Go!
             callback.onFingerLockReady();
         }
     }
 
+    /**
+     * Starts the sensor again as it was last started, run by the {@link RestartScheduler}
+     */
+    private void restart(@NonNull Registration registration) {
+        if (!registration.isRegistered()) {
+            return;
+        }
+        int cipherMode = registration.cipherMode;
+        if (cipherMode == NO_CIPHER) {
+            start(registration);
+        } else {
+            start(registration, cipherMode, registration.iv);
+        }
+    }
+
     @Override
     public void recreateKey(final FingerLockResultCallback listener) {
-        if (mCallback == listener) {
-            mKey.recreateKey();
+        Registration registration = mRegistrations.get(listener);
+        if (registration != null) {
+            registration.key.recreateKeyAsync(new KeyResultCallback(registration));
         } else {
-            if(BuildConfig.DEBUG) Log.d(TAG, "recreateKey: non-registered listener trying to recreate key");
+            if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "recreateKey: non-registered listener trying to recreate key");
         }
     }
 
+    @Nullable
+    @Override
+    public FingerLockSession getSession() {
+        Registration registration = mCurrent.get();
+        return registration != null ? registration.key.session() : null;
+    }
+
+    @Nullable
+    @Override
+    public FingerLockSession getSession(@NonNull FingerLockResultCallback listener) {
+        Registration registration = mRegistrations.get(listener);
+        return registration != null ? registration.key.session() : null;
+    }
+
     @Override
     public boolean inUseBy(FingerLockResultCallback listener) {
-        if(BuildConfig.DEBUG) Log.d(TAG, "inUseBy: " + (mCallback == listener ? "true" : "false"));
-        return mContext != null && mCallback != null && mCallback == listener;
+        boolean inUse = listener != null && mRegistrations.containsKey(listener);
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "inUseBy: " + (inUse ? "true" : "false"));
+        return inUse;
     }
 
     @Override
-    public boolean unregister(@NonNull FingerLockResultCallback listener) {
-        if (mCallback == listener) {
-            mCallback = null;
-            mContext = null;
+    public boolean isScanning(@NonNull FingerLockResultCallback listener) {
+        Registration registration = mRegistrations.get(listener);
+        return registration != null && registration.isScanning();
+    }
 
-            stop();
-            if(BuildConfig.DEBUG) Log.d(TAG, "unregister: OK");
+    @Override
+    public boolean unregister(@NonNull FingerLockResultCallback listener) {
+        Registration registration = mRegistrations.get(listener);
+        if (registration != null) {
+            unregister(registration);
+            if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "unregister: OK");
             return true;
         }
 
         return false;
     }
 
-    private void forceUnregister() {
-        mCallback = null;
-        mContext = null;
+    private void unregister(@NonNull Registration registration) {
+        if (!registration.state.compareAndSet(AuthState.REGISTERED, AuthState.IDLE)) {
+            // already unregistered
+            return;
+        }
+        // only removes the mapping when it's still this registration
+        mRegistrations.remove(registration.callback, registration);
+        stop(registration);
+        if (mCurrent.get() == registration) {
+            // fall back to any other registration
+            Iterator<Registration> others = mRegistrations.values().iterator();
+            mCurrent.compareAndSet(registration, others.hasNext() ? others.next() : null);
+        }
+    }
 
-        stop();
-        if(BuildConfig.DEBUG) Log.d(TAG, "Force unregister: OK");
+    @NonNull
+    private Registration current() throws IllegalStateException {
+        Registration registration = mCurrent.get();
+        if (registration == null) {
+            throw new IllegalStateException("Callback listener not registered");
+        }
+        return registration;
     }
 
-    private void invalidContext() throws IllegalStateException {
-        if (mContext == null) {
+    @NonNull
+    private Registration registered(@NonNull FingerLockResultCallback listener) throws IllegalStateException {
+        Registration registration = mRegistrations.get(listener);
+        if (registration == null) {
             throw new IllegalStateException("Callback listener not registered");
         }
+        return registration;
     }
 
-    @TargetApi(Build.VERSION_CODES.M)
-    @Nullable
-    private FingerprintManager getFingerprintManager() {
+    /**
+     * Forwards the results of the asynchronous key operations to the target listener as long as
+     * it's still registered by the time they're delivered.
+     */
+    private final class KeyResultCallback implements FingerLockResultCallback, FingerLockErrorCallback {
 
-        if (mFingerprintManager == null) {
-            invalidContext();
+        private final Registration mRegistration;
 
-            mFingerprintManager = (FingerprintManager) mContext.getSystemService(Context.FINGERPRINT_SERVICE);
+        KeyResultCallback(@NonNull Registration registration) {
+            mRegistration = registration;
+        }
+
+        @Override
+        public void onFingerLockError(@FingerLock.FingerLockErrorState int errorType, Exception e) {
+            if (mRegistration.isRegistered()) {
+                // something went wrong unregister and notify
+                stop(mRegistration);
+                mRegistration.callback.onFingerLockError(errorType, e);
+            }
         }
 
-        return mFingerprintManager;
-    }}
+        @Override
+        public void onFingerLockError(@NonNull FingerLockError error) {
+            if (mRegistration.isRegistered()) {
+                // something went wrong unregister and notify
+                stop(mRegistration);
+                FingerLockError.dispatch(mRegistration.callback, error);
+            }
+        }
+
+        @Override
+        public void onFingerLockAuthenticationSucceeded() {
+            if (mRegistration.isRegistered()) {
+                mRegistration.callback.onFingerLockAuthenticationSucceeded();
+            }
+        }
+
+        @Override
+        public void onFingerLockReady() {
+            if (mRegistration.isRegistered()) {
+                mRegistration.callback.onFingerLockReady();
+            }
+        }
+
+        @Override
+        public void onFingerLockScanning(boolean invalidKey) {
+            if (mRegistration.isRegistered()) {
+                mRegistration.callback.onFingerLockScanning(invalidKey);
+            }
+        }
+    }
+}
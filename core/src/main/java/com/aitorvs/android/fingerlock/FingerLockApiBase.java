@@ -21,7 +21,9 @@
 package com.aitorvs.android.fingerlock;
 
 import android.content.Context;
+import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 class FingerLockApiBase implements FingerLockApi.FingerLockImpl {
     @Override
@@ -38,16 +40,38 @@ class FingerLockApiBase implements FingerLockApi.FingerLockImpl {
     public void start() {
     }
 
+    @Override
+    public void start(@NonNull FingerLockResultCallback listener) {
+    }
+
+    @Override
+    public void start(int cipherMode, @Nullable byte[] iv) {
+    }
+
+    @Override
+    public void start(@NonNull FingerLockResultCallback listener, int cipherMode, @Nullable byte[] iv) {
+    }
+
     @Override
     public void stop() {
     }
 
+    @Override
+    public void stop(@NonNull FingerLockResultCallback listener) {
+    }
+
     @Override
     public void register(@NonNull Context context, @NonNull final String keyName, @NonNull FingerLockResultCallback callback) {
+        register(context, keyName, callback, null);
+    }
+
+    @Override
+    public void register(@NonNull Context context, @NonNull final String keyName, @NonNull FingerLockResultCallback callback,
+                         @Nullable Handler callbackHandler) {
         //noinspection ConstantConditions
         if (callback != null) {
             // error out to inform the user
-            callback.onFingerLockError(FingerLock.FINGERPRINT_NOT_SUPPORTED, new Exception("Fingerprint authentication not supported in this device"));
+            FingerLockError.report(callback, FingerLockError.NOT_SUPPORTED);
         }
     }
 
@@ -61,7 +85,24 @@ class FingerLockApiBase implements FingerLockApi.FingerLockImpl {
         return false;
     }
 
+    @Override
+    public boolean isScanning(@NonNull FingerLockResultCallback listener) {
+        return false;
+    }
+
     @Override
     public void recreateKey(FingerLockResultCallback listener) {
     }
+
+    @Nullable
+    @Override
+    public FingerLockSession getSession() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public FingerLockSession getSession(@NonNull FingerLockResultCallback listener) {
+        return null;
+    }
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.content.Context;
+import android.os.Handler;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.security.InvalidParameterException;
+
+/**
+ * Lifecycle-independent FingerLock engine. Use it to authenticate from a {@link android.app.Service},
+ * a plain {@link android.app.Activity} or any other component that can't host the
+ * {@link FingerLock} fragment.
+ * <p>
+ * The engine is registered within an explicit {@link #open()}/{@link #close()} scope: it
+ * receives the library events from {@link #open()} on and releases the sensor and the key on
+ * {@link #close()}. It can be opened again after being closed. Both calls must happen in the main
+ * thread. The {@link FingerLock} fragment is just a binding that opens and closes an engine
+ * along with the activity lifecycle.
+ * <pre>
+ * FingerLockEngine engine = new FingerLockEngine(context, KEY_NAME);
+ * engine.addFingerLockListener(callback);
+ * engine.open();   // callback.onFingerLockReady() -> engine.start()
+ * ...
+ * engine.close();
+ * </pre>
+ */
+public final class FingerLockEngine implements FingerLockManager, Closeable {
+
+    private static final String TAG = FingerLockEngine.class.getSimpleName();
+
+    private final Context mContext;
+    private final String mKeyName;
+    private final FingerLockApi.FingerLockImpl mImpl;
+
+    // fans out the events to every added listener
+    private final FingerLockListeners mListeners = new FingerLockListeners();
+
+    // handler to deliver the sensor events, null for the main thread
+    private Handler mCallbackHandler;
+
+    private boolean mOpen;
+
+    /**
+     * Creates a closed engine
+     *
+     * @param context any context, the application context is used
+     * @param keyName key name
+     */
+    @MainThread
+    public FingerLockEngine(@NonNull Context context, @NonNull String keyName) {
+        //noinspection ConstantConditions
+        if (context == null || keyName == null) {
+            throw new InvalidParameterException("Invalid or null input parameters");
+        }
+        Context appContext = context.getApplicationContext();
+        mContext = appContext != null ? appContext : context;
+        mKeyName = keyName;
+        // shared with any other engine, each one registers its own key
+        mImpl = FingerLockApi.shared();
+    }
+
+    /**
+     * Registers the engine. The listeners receive {@link FingerLockResultCallback#onFingerLockReady()}
+     * when fingerprint authentication can be started, or the error otherwise. No-op when already
+     * open.
+     */
+    @MainThread
+    public void open() {
+        if (mOpen) {
+            return;
+        }
+        mOpen = true;
+        mImpl.register(mContext, mKeyName, mListeners, mCallbackHandler);
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "open: " + mKeyName);
+    }
+
+    /**
+     * Stops scanning and unregisters the engine. No-op when already closed.
+     */
+    @MainThread
+    @Override
+    public void close() {
+        if (!mOpen) {
+            return;
+        }
+        mOpen = false;
+        mImpl.unregister(mListeners);
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "close: " + mKeyName);
+    }
+
+    /**
+     * Returns <code>true</code> between {@link #open()} and {@link #close()}
+     *
+     * @return <code>true</code> when open
+     */
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * Returns <code>true</code> when the engine is open and the sensor is scanning
+     *
+     * @return <code>true</code> when scanning
+     */
+    public boolean isScanning() {
+        return mOpen && mImpl.isScanning(mListeners);
+    }
+
+    /**
+     * Returns the key name
+     *
+     * @return key name
+     */
+    @NonNull
+    public String getKeyName() {
+        return mKeyName;
+    }
+
+    /**
+     * {@hide}
+     * Tells the listeners where the open engine is: scanning or ready to start
+     */
+    void dispatchState() {
+        if (isScanning()) {
+            mListeners.onFingerLockScanning(false);
+        } else {
+            mListeners.onFingerLockReady();
+        }
+    }
+
+    /**
+     * {@hide}
+     * Returns <code>true</code> when the listener has been added
+     */
+    boolean hasListener(FingerLockResultCallback listener) {
+        return mListeners.contains(listener);
+    }
+
+    private void checkOpen() throws IllegalStateException {
+        if (!mOpen) {
+            throw new IllegalStateException("FingerLockEngine not open");
+        }
+    }
+
+    /**
+     * Returns <code>true</code> when fingerprint authentication is available and supported. It
+     * can be called before the engine is open.
+     *
+     * @return <code>true</code> when supported
+     */
+    @Override
+    public boolean isFingerprintAuthSupported() {
+        return mOpen ? mImpl.isFingerprintAuthSupported() : FingerLockApi.isFingerprintAuthSupported(mContext);
+    }
+
+    /**
+     * Returns <code>true</code> when the user has at least one fingerprint registered. It can be
+     * called before the engine is open.
+     *
+     * @return <code>true</code> when at least one fingerprint is registered
+     */
+    @Override
+    public boolean isFingerprintRegistered() {
+        return mOpen ? mImpl.isFingerprintRegistered() : FingerLockApi.isFingerprintRegistered(mContext);
+    }
+
+    /**
+     * Call this method to start fingerprint scanning
+     *
+     * @throws IllegalStateException when the engine is not open
+     */
+    @Override
+    public void start() {
+        checkOpen();
+        mImpl.start(mListeners);
+    }
+
+    /**
+     * Call this method to start fingerprint scanning with a {@link javax.crypto.Cipher} bound to
+     * the authentication
+     *
+     * @param cipherMode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+     *                   {@link javax.crypto.Cipher#DECRYPT_MODE}
+     * @param iv         initialization vector, required to decrypt
+     * @throws IllegalStateException when the engine is not open
+     */
+    @Override
+    public void start(int cipherMode, @Nullable byte[] iv) {
+        checkOpen();
+        mImpl.start(mListeners, cipherMode, iv);
+    }
+
+    /**
+     * Call this method to force stopping fingerprint scanning. No-op when the engine is not open
+     */
+    @Override
+    public void stop() {
+        if (mOpen) {
+            mImpl.stop(mListeners);
+        }
+    }
+
+    @Override
+    public void recreateKey(@NonNull FingerLockResultCallback listener) {
+        //noinspection ConstantConditions
+        if (mOpen && listener != null && mListeners.contains(listener)) {
+            mImpl.recreateKey(mListeners);
+        }
+    }
+
+    @Override
+    public void addFingerLockListener(@NonNull FingerLockResultCallback listener) {
+        //noinspection ConstantConditions
+        if (listener != null) {
+            mListeners.add(listener);
+        }
+    }
+
+    @Override
+    public void removeFingerLockListener(@NonNull FingerLockResultCallback listener) {
+        //noinspection ConstantConditions
+        if (listener != null) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Call this method to deliver the sensor events in the thread of the given handler. It
+     * applies from the next {@link #open()} on.
+     *
+     * @param handler handler to deliver the sensor events, <code>null</code> for the main thread
+     */
+    @Override
+    public void setCallbackHandler(@Nullable Handler handler) {
+        mCallbackHandler = handler;
+    }
+
+    /**
+     * No-op, the engine is not bound to any lifecycle and the session lives until
+     * {@link #close()}
+     *
+     * @param retain ignored
+     */
+    @Override
+    public void setRetainSession(boolean retain) {
+    }
+
+    @Nullable
+    @Override
+    public FingerLockSession getSession() {
+        return mOpen ? mImpl.getSession(mListeners) : null;
+    }
+}
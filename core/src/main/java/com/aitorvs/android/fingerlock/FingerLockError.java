@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Error reported by the library.
+ * <p>
+ * This is a stackless exception: no stack trace is captured when it is created, so it's cheap
+ * to report on every sensor event. Errors raised by the fingerprint sensor (help and
+ * unrecoverable errors) are reused by the library, thus they are only valid during the callback
+ * call. Copy the fields if they are needed later on.
+ * <p>
+ * Implement {@link FingerLockErrorCallback} to receive it directly, otherwise it is delivered
+ * through {@link FingerLockResultCallback#onFingerLockError(int, Exception)}.
+ */
+public final class FingerLockError extends Exception {
+
+    /**
+     * No system error/help code available
+     */
+    public static final int NO_SYSTEM_CODE = -1;
+
+    /**
+     * The sensor is not going to be restarted by the library
+     */
+    public static final long NO_RESTART = -1;
+
+    // shared instances for the errors that carry no system information
+    static final FingerLockError NOT_SUPPORTED = new FingerLockError(FingerLock.FINGERPRINT_NOT_SUPPORTED,
+            "Fingerprint authentication not supported in this device");
+    static final FingerLockError REGISTRATION_NEEDED = new FingerLockError(FingerLock.FINGERPRINT_REGISTRATION_NEEDED,
+            "No fingerprints registered in this device");
+    static final FingerLockError NOT_RECOGNIZED = new FingerLockError(FingerLock.FINGERPRINT_NOT_RECOGNIZED,
+            "Fingerprint not recognized, try again.");
+    static final FingerLockError KEY_CREATION_FAILED = new FingerLockError(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR,
+            "Key creation failed.");
+    static final FingerLockError CIPHER_INIT_FAILED = new FingerLockError(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR,
+            "Cipher initialization failed.");
+
+    private int mErrorType;
+    private int mSystemCode;
+    private CharSequence mDescription;
+    private long mRestartDelayMillis;
+
+    FingerLockError(@FingerLock.FingerLockErrorState int errorType, @Nullable CharSequence description) {
+        this(errorType, NO_SYSTEM_CODE, description);
+    }
+
+    FingerLockError(@FingerLock.FingerLockErrorState int errorType, int systemCode, @Nullable CharSequence description) {
+        set(errorType, systemCode, description);
+    }
+
+    /**
+     * {@hide}
+     * Reuse the instance for a new error
+     */
+    FingerLockError set(@FingerLock.FingerLockErrorState int errorType, int systemCode, @Nullable CharSequence description) {
+        mErrorType = errorType;
+        mSystemCode = systemCode;
+        mDescription = description;
+        mRestartDelayMillis = NO_RESTART;
+        return this;
+    }
+
+    /**
+     * {@hide}
+     * Sets the delay of the restart scheduled for this error
+     */
+    FingerLockError setRestartDelay(long delayMillis) {
+        mRestartDelayMillis = delayMillis;
+        return this;
+    }
+
+    /**
+     * Returns the error type
+     *
+     * @return error type
+     */
+    @FingerLock.FingerLockErrorState
+    public int getErrorType() {
+        return mErrorType;
+    }
+
+    /**
+     * Returns the help/error code reported by the system, if any
+     *
+     * @return system code or {@link #NO_SYSTEM_CODE}
+     */
+    public int getSystemCode() {
+        return mSystemCode;
+    }
+
+    /**
+     * Returns the human readable error description, as provided by the system when available.
+     * Unlike {@link #getMessage()}, this call allocates nothing.
+     *
+     * @return error description
+     */
+    @Nullable
+    public CharSequence getDescription() {
+        return mDescription;
+    }
+
+    /**
+     * Returns the time until the library starts the sensor again, as scheduled by the
+     * {@link FingerLockRestartPolicy} in place, e.g. when the lockout expires
+     *
+     * @return delay in milliseconds or {@link #NO_RESTART}
+     */
+    public long getRestartDelayMillis() {
+        return mRestartDelayMillis;
+    }
+
+    @Override
+    public String getMessage() {
+        return mDescription != null ? mDescription.toString() : null;
+    }
+
+    /**
+     * {@hide}
+     * Reports a new error: it's counted by the metrics and delivered to the callback. Errors
+     * forwarded from one callback to another use {@link #dispatch} instead, so that they're
+     * counted once.
+     */
+    static void report(@NonNull FingerLockResultCallback callback, @NonNull FingerLockError error) {
+        Metrics.error(error.getErrorType());
+        dispatch(callback, error);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        // stackless, do not capture the stack trace
+        return this;
+    }
+
+    /**
+     * {@hide}
+     * Delivers the error to the callback, using {@link FingerLockErrorCallback} when implemented
+     */
+    static void dispatch(@NonNull FingerLockResultCallback callback, @NonNull FingerLockError error) {
+        if (callback instanceof FingerLockErrorCallback) {
+            ((FingerLockErrorCallback) callback).onFingerLockError(error);
+        } else {
+            callback.onFingerLockError(error.getErrorType(), error);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FingerLockError{" +
+                "errorType=" + mErrorType +
+                ", systemCode=" + mSystemCode +
+                ", description=" + mDescription +
+                ", restartDelayMillis=" + mRestartDelayMillis +
+                "}";
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Optional contract to be implemented along with {@link FingerLockResultCallback} to receive the
+ * errors as {@link FingerLockError} values. When implemented, this method is called instead of
+ * {@link FingerLockResultCallback#onFingerLockError(int, Exception)}.
+ */
+public interface FingerLockErrorCallback {
+
+    /**
+     * This callback method is called when fingerprint authentication failed. The error object
+     * may be reused by the library, it is only valid during this call.
+     *
+     * @param error error raised
+     */
+    void onFingerLockError(@NonNull FingerLockError error);
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.security.keystore.KeyProperties;
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+
+/**
+ * Parameters used to generate a FingerLock key. Register them with
+ * {@link FingerLock#configureKey(String, FingerLockKeySpec)} before the key is created.
+ * <p>
+ * Keys are AES keys. The block mode and padding also set the transformation of the ciphers
+ * initialized with the key, e.g. use {@link KeyProperties#BLOCK_MODE_GCM} for single-pass
+ * authenticated encryption:
+ * <pre>
+ * FingerLock.configureKey(KEY_NAME, new FingerLockKeySpec.Builder()
+ *         .setBlockMode(KeyProperties.BLOCK_MODE_GCM)
+ *         .setKeySize(256)
+ *         .build());
+ * </pre>
+ * Changing the block mode or padding of an existing key makes it unusable, it's reported as an
+ * invalid key until it is recreated.
+ */
+public final class FingerLockKeySpec {
+
+    /**
+     * Length of the GCM authentication tag, in bits
+     */
+    public static final int GCM_TAG_LENGTH = 128;
+
+    /**
+     * Default spec: AES/CBC/PKCS7Padding 128 bit key, the user must authenticate to authorize
+     * every single use of the key
+     */
+    public static final FingerLockKeySpec DEFAULT = new Builder().build();
+
+    private final int keySize;
+    private final String blockMode;
+    private final String encryptionPadding;
+    private final int userAuthenticationValidityDurationSeconds;
+    private final boolean invalidatedByBiometricEnrollment;
+    private final boolean userAuthenticationValidWhileOnBody;
+    // cipher transformation, built once
+    private final String transformation;
+
+    private FingerLockKeySpec(Builder builder, String encryptionPadding) {
+        this.keySize = builder.keySize;
+        this.blockMode = builder.blockMode;
+        this.encryptionPadding = encryptionPadding;
+        this.userAuthenticationValidityDurationSeconds = builder.userAuthenticationValidityDurationSeconds;
+        this.invalidatedByBiometricEnrollment = builder.invalidatedByBiometricEnrollment;
+        this.userAuthenticationValidWhileOnBody = builder.userAuthenticationValidWhileOnBody;
+        this.transformation = KeyProperties.KEY_ALGORITHM_AES + "/" + blockMode + "/" + encryptionPadding;
+    }
+
+    /**
+     * Returns the key size
+     *
+     * @return key size in bits
+     */
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /**
+     * Returns the block mode of the key and its ciphers
+     *
+     * @return one of {@link KeyProperties#BLOCK_MODE_CBC}, {@link KeyProperties#BLOCK_MODE_CTR}
+     * or {@link KeyProperties#BLOCK_MODE_GCM}
+     */
+    @NonNull
+    public String getBlockMode() {
+        return blockMode;
+    }
+
+    /**
+     * Returns the encryption padding of the key and its ciphers
+     *
+     * @return either {@link KeyProperties#ENCRYPTION_PADDING_PKCS7} or
+     * {@link KeyProperties#ENCRYPTION_PADDING_NONE}
+     */
+    @NonNull
+    public String getEncryptionPadding() {
+        return encryptionPadding;
+    }
+
+    /**
+     * Returns <code>true</code> when the ciphers of the key authenticate the data as they encrypt
+     * it (GCM), no separate MAC needed
+     *
+     * @return <code>true</code> for authenticated encryption
+     */
+    public boolean isAuthenticatedEncryption() {
+        return KeyProperties.BLOCK_MODE_GCM.equals(blockMode);
+    }
+
+    /**
+     * Returns the duration of time (seconds) for which the key is authorized after the user
+     * authenticates
+     *
+     * @return duration in seconds or <code>-1</code> when every use of the key needs a new
+     * authentication
+     */
+    public int getUserAuthenticationValidityDurationSeconds() {
+        return userAuthenticationValidityDurationSeconds;
+    }
+
+    /**
+     * Returns <code>true</code> when the key is authorized for a time window after the user
+     * authenticates
+     *
+     * @return <code>true</code> when time-bound
+     */
+    public boolean isTimeBound() {
+        return userAuthenticationValidityDurationSeconds > 0;
+    }
+
+    /**
+     * Returns <code>true</code> when the key is invalidated once a new fingerprint is enrolled
+     *
+     * @return <code>true</code> when invalidated by new enrollments
+     */
+    public boolean isInvalidatedByBiometricEnrollment() {
+        return invalidatedByBiometricEnrollment;
+    }
+
+    /**
+     * Returns <code>true</code> when a time-bound key stays authorized while the device is on
+     * the user's body
+     *
+     * @return <code>true</code> when valid while on body
+     */
+    public boolean isUserAuthenticationValidWhileOnBody() {
+        return userAuthenticationValidWhileOnBody;
+    }
+
+    /**
+     * {@hide}
+     * Returns the transformation of the ciphers of the key, e.g. "AES/GCM/NoPadding"
+     */
+    @NonNull
+    String getTransformation() {
+        return transformation;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FingerLockKeySpec)) return false;
+        FingerLockKeySpec other = (FingerLockKeySpec) o;
+        return keySize == other.keySize
+                && blockMode.equals(other.blockMode)
+                && encryptionPadding.equals(other.encryptionPadding)
+                && userAuthenticationValidityDurationSeconds == other.userAuthenticationValidityDurationSeconds
+                && invalidatedByBiometricEnrollment == other.invalidatedByBiometricEnrollment
+                && userAuthenticationValidWhileOnBody == other.userAuthenticationValidWhileOnBody;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = keySize;
+        result = 31 * result + blockMode.hashCode();
+        result = 31 * result + encryptionPadding.hashCode();
+        result = 31 * result + userAuthenticationValidityDurationSeconds;
+        result = 31 * result + (invalidatedByBiometricEnrollment ? 1 : 0);
+        result = 31 * result + (userAuthenticationValidWhileOnBody ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "FingerLockKeySpec{" +
+                "keySize=" + keySize +
+                ", blockMode=" + blockMode +
+                ", encryptionPadding=" + encryptionPadding +
+                ", userAuthenticationValidityDurationSeconds=" + userAuthenticationValidityDurationSeconds +
+                ", invalidatedByBiometricEnrollment=" + invalidatedByBiometricEnrollment +
+                ", userAuthenticationValidWhileOnBody=" + userAuthenticationValidWhileOnBody +
+                "}";
+    }
+
+    /**
+     * Creates a builder for the {@link FingerLockKeySpec}
+     */
+    public static final class Builder {
+
+        private int keySize = 128;
+        private String blockMode = KeyProperties.BLOCK_MODE_CBC;
+        private String encryptionPadding;
+        private int userAuthenticationValidityDurationSeconds = -1;
+        private boolean invalidatedByBiometricEnrollment = true;
+        private boolean userAuthenticationValidWhileOnBody;
+
+        /**
+         * Set the key size
+         *
+         * @param keySize 128 (default), 192 or 256 bits
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setKeySize(int keySize) {
+            if (keySize != 128 && keySize != 192 && keySize != 256) {
+                throw new IllegalArgumentException("keySize must be 128, 192 or 256");
+            }
+            this.keySize = keySize;
+            return this;
+        }
+
+        /**
+         * Set the block mode of the key and its ciphers
+         *
+         * @param blockMode {@link KeyProperties#BLOCK_MODE_CBC} (default),
+         *                  {@link KeyProperties#BLOCK_MODE_CTR} or
+         *                  {@link KeyProperties#BLOCK_MODE_GCM} for authenticated encryption
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setBlockMode(@NonNull String blockMode) {
+            if (!KeyProperties.BLOCK_MODE_CBC.equals(blockMode)
+                    && !KeyProperties.BLOCK_MODE_CTR.equals(blockMode)
+                    && !KeyProperties.BLOCK_MODE_GCM.equals(blockMode)) {
+                throw new IllegalArgumentException("Unsupported block mode " + blockMode);
+            }
+            this.blockMode = blockMode;
+            return this;
+        }
+
+        /**
+         * Set the encryption padding of the key and its ciphers. By default
+         * {@link KeyProperties#ENCRYPTION_PADDING_PKCS7} for CBC and
+         * {@link KeyProperties#ENCRYPTION_PADDING_NONE} otherwise.
+         *
+         * @param encryptionPadding {@link KeyProperties#ENCRYPTION_PADDING_PKCS7}, only with CBC,
+         *                          or {@link KeyProperties#ENCRYPTION_PADDING_NONE}
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setEncryptionPadding(@NonNull String encryptionPadding) {
+            if (!KeyProperties.ENCRYPTION_PADDING_PKCS7.equals(encryptionPadding)
+                    && !KeyProperties.ENCRYPTION_PADDING_NONE.equals(encryptionPadding)) {
+                throw new IllegalArgumentException("Unsupported encryption padding " + encryptionPadding);
+            }
+            this.encryptionPadding = encryptionPadding;
+            return this;
+        }
+
+        /**
+         * Set the duration of time (seconds) for which the key is authorized after the user
+         * authenticates. Within that window any number of crypto operations can be done without
+         * scanning again, see {@link FingerLockSession}.
+         *
+         * @param seconds duration in seconds or <code>-1</code> (default) to require the user to
+         *                authenticate for every use of the key
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setUserAuthenticationValidityDurationSeconds(@IntRange(from = -1) int seconds) {
+            if (seconds < -1 || seconds == 0) {
+                throw new IllegalArgumentException("seconds must be -1 or positive");
+            }
+            this.userAuthenticationValidityDurationSeconds = seconds;
+            return this;
+        }
+
+        /**
+         * Set whether the key is invalidated once a new fingerprint is enrolled. Only applies
+         * from API 24 on, keys are always invalidated before.
+         *
+         * @param invalidated <code>true</code> (default) to invalidate the key
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setInvalidatedByBiometricEnrollment(boolean invalidated) {
+            this.invalidatedByBiometricEnrollment = invalidated;
+            return this;
+        }
+
+        /**
+         * Set whether a time-bound key stays authorized while the device is on the user's body,
+         * as detected by the on-body sensor. Only applies from API 24 on.
+         *
+         * @param valid <code>true</code> to keep the key authorized, default is
+         *              <code>false</code>
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setUserAuthenticationValidWhileOnBody(boolean valid) {
+            this.userAuthenticationValidWhileOnBody = valid;
+            return this;
+        }
+
+        /**
+         * Creates the {@link FingerLockKeySpec}
+         *
+         * @return key spec
+         * @throws IllegalArgumentException when PKCS7 padding is set with a block mode other than
+         *                                  CBC
+         */
+        public FingerLockKeySpec build() {
+            boolean cbc = KeyProperties.BLOCK_MODE_CBC.equals(blockMode);
+            String padding = encryptionPadding;
+            if (padding == null) {
+                padding = cbc ? KeyProperties.ENCRYPTION_PADDING_PKCS7 : KeyProperties.ENCRYPTION_PADDING_NONE;
+            } else if (!cbc && KeyProperties.ENCRYPTION_PADDING_PKCS7.equals(padding)) {
+                throw new IllegalArgumentException("PKCS7 padding can only be used with CBC");
+            }
+            return new FingerLockKeySpec(this, padding);
+        }
+    }
+}
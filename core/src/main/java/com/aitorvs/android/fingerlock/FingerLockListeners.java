@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.NonNull;
+
+import javax.crypto.Cipher;
+
+/**
+ * {@hide}
+ * Fans out the library events to several listeners.
+ * <p>
+ * Listeners are kept in a copy-on-write array: adding or removing one copies the array, while
+ * dispatching iterates the current snapshot without locking nor allocating. Listeners can be
+ * safely added or removed from inside a callback, the change applies from the next event on.
+ */
+final class FingerLockListeners implements FingerLockResultCallback, FingerLockErrorCallback, FingerLockCipherCallback {
+
+    private static final FingerLockResultCallback[] EMPTY = new FingerLockResultCallback[0];
+
+    private final Object mLock = new Object();
+    private volatile FingerLockResultCallback[] mListeners = EMPTY;
+
+    /**
+     * Adds a listener, no-op if already added
+     *
+     * @param listener listener to add
+     */
+    void add(@NonNull FingerLockResultCallback listener) {
+        synchronized (mLock) {
+            FingerLockResultCallback[] current = mListeners;
+            if (indexOf(current, listener) >= 0) {
+                return;
+            }
+            FingerLockResultCallback[] updated = new FingerLockResultCallback[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = listener;
+            mListeners = updated;
+        }
+    }
+
+    /**
+     * Removes a listener
+     *
+     * @param listener listener to remove
+     * @return <code>true</code> if the listener was found
+     */
+    boolean remove(@NonNull FingerLockResultCallback listener) {
+        synchronized (mLock) {
+            FingerLockResultCallback[] current = mListeners;
+            int index = indexOf(current, listener);
+            if (index < 0) {
+                return false;
+            }
+            if (current.length == 1) {
+                mListeners = EMPTY;
+                return true;
+            }
+            FingerLockResultCallback[] updated = new FingerLockResultCallback[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            mListeners = updated;
+            return true;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> when the listener has been added
+     *
+     * @param listener listener
+     * @return <code>true</code> when found
+     */
+    boolean contains(FingerLockResultCallback listener) {
+        return indexOf(mListeners, listener) >= 0;
+    }
+
+    private static int indexOf(FingerLockResultCallback[] listeners, FingerLockResultCallback listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void onFingerLockError(@FingerLock.FingerLockErrorState int errorType, Exception e) {
+        if (e instanceof FingerLockError) {
+            onFingerLockError((FingerLockError) e);
+            return;
+        }
+        FingerLockResultCallback[] listeners = mListeners;
+        for (FingerLockResultCallback listener : listeners) {
+            listener.onFingerLockError(errorType, e);
+        }
+    }
+
+    @Override
+    public void onFingerLockError(@NonNull FingerLockError error) {
+        FingerLockResultCallback[] listeners = mListeners;
+        for (FingerLockResultCallback listener : listeners) {
+            FingerLockError.dispatch(listener, error);
+        }
+    }
+
+    @Override
+    public void onFingerLockAuthenticationSucceeded() {
+        FingerLockResultCallback[] listeners = mListeners;
+        for (FingerLockResultCallback listener : listeners) {
+            listener.onFingerLockAuthenticationSucceeded();
+        }
+    }
+
+    @Override
+    public void onFingerLockAuthenticationSucceeded(@NonNull Cipher cipher) {
+        FingerLockResultCallback[] listeners = mListeners;
+        for (FingerLockResultCallback listener : listeners) {
+            if (listener instanceof FingerLockCipherCallback) {
+                ((FingerLockCipherCallback) listener).onFingerLockAuthenticationSucceeded(cipher);
+            } else {
+                listener.onFingerLockAuthenticationSucceeded();
+            }
+        }
+    }
+
+    @Override
+    public void onFingerLockReady() {
+        FingerLockResultCallback[] listeners = mListeners;
+        for (FingerLockResultCallback listener : listeners) {
+            listener.onFingerLockReady();
+        }
+    }
+
+    @Override
+    public void onFingerLockScanning(boolean invalidKey) {
+        FingerLockResultCallback[] listeners = mListeners;
+        for (FingerLockResultCallback listener : listeners) {
+            listener.onFingerLockScanning(invalidKey);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * {@hide}
+ * Library logging through the {@link FingerLockLogger}, if any. Guard the messages that need to
+ * be built so that nothing is formatted when logging is disabled:
+ * <pre>
+ * if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "open: " + keyName);
+ * </pre>
+ */
+final class FingerLockLog {
+
+    private static volatile FingerLockLogger sLogger;
+
+    private FingerLockLog() {
+    }
+
+    static void setLogger(@Nullable FingerLockLogger logger) {
+        sLogger = logger;
+    }
+
+    /**
+     * Returns <code>true</code> when debug messages are logged
+     *
+     * @return <code>true</code> when logged
+     */
+    static boolean isDebugEnabled() {
+        FingerLockLogger logger = sLogger;
+        return logger != null && logger.isLoggable(Log.DEBUG);
+    }
+
+    static void d(@NonNull String tag, @NonNull String message) {
+        FingerLockLogger logger = sLogger;
+        if (logger != null && logger.isLoggable(Log.DEBUG)) {
+            logger.log(Log.DEBUG, tag, message, null);
+        }
+    }
+
+    static void e(@NonNull String tag, @NonNull String message, @Nullable Throwable t) {
+        FingerLockLogger logger = sLogger;
+        if (logger != null && logger.isLoggable(Log.ERROR)) {
+            logger.log(Log.ERROR, tag, message, t);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Receives the library logs. Set it through {@link FingerLock#setLogger(FingerLockLogger)},
+ * the library does not log otherwise. Log messages are only built when there's a logger and
+ * {@link #isLoggable(int)} returns <code>true</code> for their priority.
+ * <pre>
+ * if (BuildConfig.DEBUG) {
+ *     FingerLock.setLogger(FingerLockLogger.LOGCAT);
+ * }
+ * </pre>
+ */
+public interface FingerLockLogger {
+
+    /**
+     * Logs every message through {@link Log}
+     */
+    FingerLockLogger LOGCAT = new FingerLockLogger() {
+        @Override
+        public boolean isLoggable(int priority) {
+            return true;
+        }
+
+        @Override
+        public void log(int priority, @NonNull String tag, @NonNull String message, @Nullable Throwable t) {
+            Log.println(priority, tag, t != null ? message + '\n' + Log.getStackTraceString(t) : message);
+        }
+    };
+
+    /**
+     * Returns <code>true</code> when messages of the given priority are logged
+     *
+     * @param priority {@link Log} priority, e.g. {@link Log#DEBUG}
+     * @return <code>true</code> when logged
+     */
+    boolean isLoggable(int priority);
+
+    /**
+     * Logs a message
+     *
+     * @param priority {@link Log} priority, e.g. {@link Log#DEBUG}
+     * @param tag      tag
+     * @param message  message
+     * @param t        throwable, if any
+     */
+    void log(int priority, @NonNull String tag, @NonNull String message, @Nullable Throwable t);
+}
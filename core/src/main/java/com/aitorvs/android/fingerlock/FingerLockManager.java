@@ -20,6 +20,10 @@
 
 package com.aitorvs.android.fingerlock;
 
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
 /**
  * FingerLock utility to manage state and behavior of the {@linkplain FingerLock} library.
  */
@@ -43,6 +47,27 @@ public interface FingerLockManager {
      */
     void start();
 
+    /**
+     * Call this method to start fingerprint scanning with a {@link javax.crypto.Cipher} bound to
+     * the authentication. The cipher is initialized with the key in a background thread and the
+     * authorized cipher is delivered through
+     * {@link FingerLockCipherCallback#onFingerLockAuthenticationSucceeded(javax.crypto.Cipher)}
+     * when the callback implements it.
+     * <p>
+     * When the key has been invalidated the sensor is not started and
+     * {@link FingerLockResultCallback#onFingerLockScanning(boolean)} is called with
+     * <code>true</code>. Time-bound keys cannot be bound to the authentication, use
+     * {@link #start()} and {@link #getSession()} instead.
+     *
+     * @param cipherMode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+     *                   {@link javax.crypto.Cipher#DECRYPT_MODE}
+     * @param iv         initialization vector, required to decrypt. Pass <code>null</code> to
+     *                   encrypt and read the generated one with {@link javax.crypto.Cipher#getIV()}
+     * @throws IllegalArgumentException when the cipher mode is neither of the above, an IV is
+     *                                  passed to encrypt or no IV is passed to decrypt
+     */
+    void start(int cipherMode, @Nullable byte[] iv);
+
     /**
      * Call this method to force stopping fingerprint scanning
      */
@@ -50,8 +75,70 @@ public interface FingerLockManager {
 
     /**
      * Call this method to re-create the keys so that new (added) fingerprints are validated.
+     * The key is generated in a background thread and
+     * {@link FingerLockResultCallback#onFingerLockReady()} is called once done.
      *
      * @param listener instance that implements {@linkplain FingerLockResultCallback} interface
      */
     void recreateKey(final FingerLockResultCallback listener);
+
+    /**
+     * Call this method to receive the library events in an additional listener. Listeners may
+     * also implement {@link FingerLockErrorCallback} and {@link FingerLockCipherCallback}.
+     *
+     * @param listener instance that implements {@linkplain FingerLockResultCallback} interface
+     */
+    void addFingerLockListener(@NonNull FingerLockResultCallback listener);
+
+    /**
+     * Call this method to stop receiving the library events in a listener previously added. It
+     * is safe to call it from inside a callback, the change applies from the next event on.
+     *
+     * @param listener instance previously added
+     */
+    void removeFingerLockListener(@NonNull FingerLockResultCallback listener);
+
+    /**
+     * Call this method to deliver the sensor events (authentication succeeded, not recognized,
+     * help and errors) in the thread of the given handler instead of the main thread, so that
+     * heavy post-authentication work does not compete with rendering. The host activity keeps
+     * receiving every event in the main thread through a {@link MainThreadCallback}, listeners
+     * added with {@link #addFingerLockListener(FingerLockResultCallback)} receive them in the
+     * handler thread. Wrap UI-facing listeners in a {@link MainThreadCallback}.
+     * <p>
+     * Every listener receives the same authorized {@link javax.crypto.Cipher}, which is not
+     * thread-safe: only one of them, e.g. the one doing the work in the handler thread, may use it.
+     * <p>
+     * Call it before the library is registered, e.g. right after
+     * {@link FingerLock#initialize(android.support.v7.app.AppCompatActivity, String)}, it applies
+     * from the next registration on.
+     *
+     * @param handler handler to deliver the sensor events, <code>null</code> for the main thread
+     */
+    void setCallbackHandler(@Nullable Handler handler);
+
+    /**
+     * Call this method to keep the authentication session alive across configuration changes
+     * (e.g. rotation). When enabled the sensor keeps scanning while the activity is re-created,
+     * only the callback is re-attached to the new activity. Upon resume the new activity receives
+     * {@link FingerLockResultCallback#onFingerLockScanning(boolean)} when still scanning, or
+     * {@link FingerLockResultCallback#onFingerLockReady()} otherwise. Events delivered while the
+     * activity is being re-created are lost.
+     * <p>
+     * The session is torn down as usual when the activity is paused for any other reason.
+     *
+     * @param retain <code>true</code> to retain the session, default is <code>false</code>
+     */
+    void setRetainSession(boolean retain);
+
+    /**
+     * Returns the authentication session of a time-bound key (see
+     * {@link FingerLockKeySpec.Builder#setUserAuthenticationValidityDurationSeconds(int)}). The
+     * session is opened when the user authenticates and lets any number of crypto operations run
+     * without scanning again until the validity window expires.
+     *
+     * @return valid session or <code>null</code> when there's none
+     */
+    @Nullable
+    FingerLockSession getSession();
 }
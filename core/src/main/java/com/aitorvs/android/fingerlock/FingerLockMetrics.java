@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.FloatRange;
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * {@link FingerLockMetricsListener} that records the phase timings in fixed-bucket histograms and
+ * counts the errors by type. Recording allocates nothing. Poll it through {@link #snapshot()},
+ * e.g. to ship the metrics to a backend.
+ * <pre>
+ * FingerLockMetrics metrics = new FingerLockMetrics();
+ * FingerLock.setMetricsListener(metrics);
+ * ...
+ * FingerLockMetrics.Snapshot snapshot = metrics.snapshot();
+ * long p99 = snapshot.getPercentileMicros(FingerLockMetricsListener.PHASE_SCAN_TO_SUCCESS, 0.99);
+ * </pre>
+ * Bucket <code>0</code> holds durations below 1 microsecond, bucket <code>i</code> the durations
+ * in <code>[2^(i-1), 2^i)</code> microseconds and the last one everything above.
+ */
+public final class FingerLockMetrics implements FingerLockMetricsListener {
+
+    /**
+     * Number of buckets of every histogram
+     */
+    public static final int BUCKET_COUNT = 32;
+
+    // error types are small consecutive values, see FingerLock.FingerLockErrorState
+    private static final int ERROR_TYPE_COUNT = FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR + 1;
+
+    private final Object mLock = new Object();
+
+    // histograms of all the phases, one after the other
+    private final long[] mBuckets = new long[PHASE_COUNT * BUCKET_COUNT];
+    private final long[] mCounts = new long[PHASE_COUNT];
+    private final long[] mTotalNanos = new long[PHASE_COUNT];
+    private final long[] mMaxNanos = new long[PHASE_COUNT];
+    private final long[] mErrors = new long[ERROR_TYPE_COUNT];
+
+    @Override
+    public void onPhase(@Phase int phase, long durationNanos) {
+        if (phase < 0 || phase >= PHASE_COUNT || durationNanos < 0) {
+            return;
+        }
+        int bucket = bucketOf(durationNanos);
+        synchronized (mLock) {
+            mBuckets[phase * BUCKET_COUNT + bucket]++;
+            mCounts[phase]++;
+            mTotalNanos[phase] += durationNanos;
+            if (durationNanos > mMaxNanos[phase]) {
+                mMaxNanos[phase] = durationNanos;
+            }
+        }
+    }
+
+    @Override
+    public void onError(@FingerLock.FingerLockErrorState int errorType) {
+        if (errorType < 0 || errorType >= ERROR_TYPE_COUNT) {
+            return;
+        }
+        synchronized (mLock) {
+            mErrors[errorType]++;
+        }
+    }
+
+    /**
+     * Returns the bucket of the given duration
+     *
+     * @param durationNanos duration in nanoseconds
+     * @return bucket index
+     */
+    static int bucketOf(long durationNanos) {
+        long micros = durationNanos / 1000;
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the exclusive upper bound of the given bucket
+     *
+     * @param bucket bucket index
+     * @return upper bound in microseconds, {@link Long#MAX_VALUE} for the last bucket
+     */
+    public static long getBucketUpperBoundMicros(@IntRange(from = 0, to = BUCKET_COUNT - 1) int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Returns a new snapshot of the metrics
+     *
+     * @return snapshot
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        return snapshot(null);
+    }
+
+    /**
+     * Copies the metrics into the given snapshot, to poll them without allocating
+     *
+     * @param reuse snapshot to reuse, <code>null</code> to create a new one
+     * @return snapshot
+     */
+    @NonNull
+    public Snapshot snapshot(@Nullable Snapshot reuse) {
+        Snapshot snapshot = reuse != null ? reuse : new Snapshot();
+        synchronized (mLock) {
+            System.arraycopy(mBuckets, 0, snapshot.buckets, 0, mBuckets.length);
+            System.arraycopy(mCounts, 0, snapshot.counts, 0, mCounts.length);
+            System.arraycopy(mTotalNanos, 0, snapshot.totalNanos, 0, mTotalNanos.length);
+            System.arraycopy(mMaxNanos, 0, snapshot.maxNanos, 0, mMaxNanos.length);
+            System.arraycopy(mErrors, 0, snapshot.errors, 0, mErrors.length);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Clears the metrics, e.g. after shipping a snapshot
+     */
+    public void reset() {
+        synchronized (mLock) {
+            Arrays.fill(mBuckets, 0);
+            Arrays.fill(mCounts, 0);
+            Arrays.fill(mTotalNanos, 0);
+            Arrays.fill(mMaxNanos, 0);
+            Arrays.fill(mErrors, 0);
+        }
+    }
+
+    /**
+     * Point-in-time copy of the metrics
+     */
+    public static final class Snapshot {
+        final long[] buckets = new long[PHASE_COUNT * BUCKET_COUNT];
+        final long[] counts = new long[PHASE_COUNT];
+        final long[] totalNanos = new long[PHASE_COUNT];
+        final long[] maxNanos = new long[PHASE_COUNT];
+        final long[] errors = new long[ERROR_TYPE_COUNT];
+
+        /**
+         * Creates an empty snapshot, see {@link FingerLockMetrics#snapshot(Snapshot)}
+         */
+        public Snapshot() {
+        }
+
+        /**
+         * Returns the number of times the phase completed
+         *
+         * @param phase phase
+         * @return count
+         */
+        public long getCount(@Phase int phase) {
+            return counts[phase];
+        }
+
+        /**
+         * Returns the total time spent in the phase
+         *
+         * @param phase phase
+         * @return total time in nanoseconds
+         */
+        public long getTotalNanos(@Phase int phase) {
+            return totalNanos[phase];
+        }
+
+        /**
+         * Returns the mean duration of the phase
+         *
+         * @param phase phase
+         * @return mean duration in nanoseconds, <code>0</code> when it never completed
+         */
+        public long getMeanNanos(@Phase int phase) {
+            return counts[phase] > 0 ? totalNanos[phase] / counts[phase] : 0;
+        }
+
+        /**
+         * Returns the longest duration of the phase
+         *
+         * @param phase phase
+         * @return max duration in nanoseconds
+         */
+        public long getMaxNanos(@Phase int phase) {
+            return maxNanos[phase];
+        }
+
+        /**
+         * Returns the number of durations of the phase in the given bucket
+         *
+         * @param phase  phase
+         * @param bucket bucket index, see {@link FingerLockMetrics#getBucketUpperBoundMicros(int)}
+         * @return count
+         */
+        public long getBucketCount(@Phase int phase, @IntRange(from = 0, to = BUCKET_COUNT - 1) int bucket) {
+            return buckets[phase * BUCKET_COUNT + bucket];
+        }
+
+        /**
+         * Returns an estimation of the given percentile of the phase durations, the upper bound of
+         * the bucket it falls in
+         *
+         * @param phase      phase
+         * @param percentile percentile, e.g. <code>0.99</code>
+         * @return percentile in microseconds, <code>0</code> when the phase never completed
+         */
+        public long getPercentileMicros(@Phase int phase, @FloatRange(from = 0.0, to = 1.0) double percentile) {
+            long count = counts[phase];
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                seen += buckets[phase * BUCKET_COUNT + bucket];
+                if (seen >= rank) {
+                    return getBucketUpperBoundMicros(bucket);
+                }
+            }
+            return getBucketUpperBoundMicros(BUCKET_COUNT - 1);
+        }
+
+        /**
+         * Returns the number of errors of the given type reported to the listeners
+         *
+         * @param errorType error type
+         * @return count
+         */
+        public long getErrorCount(@FingerLock.FingerLockErrorState int errorType) {
+            return errorType >= 0 && errorType < errors.length ? errors[errorType] : 0;
+        }
+    }
+}
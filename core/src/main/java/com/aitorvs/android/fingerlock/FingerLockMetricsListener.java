@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Receives the timings of the library phases and the errors reported to the listeners. Set it
+ * through {@link FingerLock#setMetricsListener(FingerLockMetricsListener)}, see
+ * {@link FingerLockMetrics} for a ready to use histogram implementation.
+ * <p>
+ * Calls come from any thread (main thread, key store thread or the callback handler thread),
+ * implementations must be thread safe, fast and should not allocate.
+ */
+public interface FingerLockMetricsListener {
+
+    /**
+     * Key validation, the cipher initialization that tells whether the key has been invalidated,
+     * see {@link FingerLockManager#start()}
+     */
+    int PHASE_KEY_VALIDATION = 0;
+
+    /**
+     * Key generation
+     */
+    int PHASE_KEY_GENERATION = 1;
+
+    /**
+     * From the start of the sensor scanning until its first event (help, failure, success or error)
+     */
+    int PHASE_FIRST_SENSOR_EVENT = 2;
+
+    /**
+     * From the start of the sensor scanning until the successful authentication
+     */
+    int PHASE_SCAN_TO_SUCCESS = 3;
+
+    /**
+     * Key store load, once per process
+     */
+    int PHASE_KEY_STORE_LOAD = 4;
+
+    /**
+     * Initialization of the cipher handed to the {@link FingerLockCipherCallback}, see
+     * {@link FingerLockManager#start(int, byte[])}
+     */
+    int PHASE_CIPHER_INIT = 5;
+
+    /**
+     * Number of phases
+     */
+    int PHASE_COUNT = 6;
+
+    /**
+     * Library phase
+     */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({PHASE_KEY_VALIDATION, PHASE_KEY_GENERATION, PHASE_FIRST_SENSOR_EVENT, PHASE_SCAN_TO_SUCCESS,
+            PHASE_KEY_STORE_LOAD, PHASE_CIPHER_INIT})
+    @interface Phase {
+    }
+
+    /**
+     * Called when a phase completes
+     *
+     * @param phase         phase
+     * @param durationNanos phase duration in nanoseconds
+     */
+    void onPhase(@Phase int phase, long durationNanos);
+
+    /**
+     * Called when an error is reported to the library listeners
+     *
+     * @param errorType error type
+     */
+    void onError(@FingerLock.FingerLockErrorState int errorType);
+}
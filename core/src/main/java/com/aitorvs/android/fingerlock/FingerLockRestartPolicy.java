@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.IntRange;
+
+/**
+ * When and how often the library re-arms the sensor on its own after it stops with an error.
+ * Register it with {@link FingerLock#setRestartPolicy(FingerLockRestartPolicy)}.
+ * <ul>
+ * <li>Lockout (too many attempts): the sensor is started again once the lockout expires. The
+ * lockout starts with the failure that caused it, the consecutive not recognized fingerprints are
+ * counted to tell it apart from a lockout that was already running</li>
+ * <li>Transient errors (hardware unavailable, unable to process, timeout): the sensor is started
+ * again after an exponential backoff, up to a maximum number of restarts</li>
+ * <li>Any other error (e.g. cancelled by the system, permanent lockout) ends the session as
+ * usual</li>
+ * </ul>
+ * The error is always reported, {@link FingerLockError#getRestartDelayMillis()} tells when the
+ * sensor is going to be restarted. Listeners receive
+ * {@link FingerLockResultCallback#onFingerLockScanning(boolean)} once it's scanning again.
+ * Stopping or starting the sensor cancels the pending restart.
+ */
+public final class FingerLockRestartPolicy {
+
+    /**
+     * Default policy: 30 seconds lockout, backoff from 1 second up to 30 seconds, 5 restarts
+     */
+    public static final FingerLockRestartPolicy DEFAULT = new Builder().build();
+
+    private final long lockoutDurationMillis;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxRestarts;
+
+    private FingerLockRestartPolicy(Builder builder) {
+        this.lockoutDurationMillis = builder.lockoutDurationMillis;
+        this.initialBackoffMillis = builder.initialBackoffMillis;
+        this.maxBackoffMillis = builder.maxBackoffMillis;
+        this.maxRestarts = builder.maxRestarts;
+    }
+
+    /**
+     * Returns the duration of the system lockout
+     *
+     * @return duration in milliseconds
+     */
+    public long getLockoutDurationMillis() {
+        return lockoutDurationMillis;
+    }
+
+    /**
+     * Returns the delay before the first restart after a transient error
+     *
+     * @return delay in milliseconds
+     */
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    /**
+     * Returns the maximum delay between restarts after transient errors
+     *
+     * @return delay in milliseconds
+     */
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * Returns the maximum number of restarts in a row after transient errors
+     *
+     * @return number of restarts
+     */
+    public int getMaxRestarts() {
+        return maxRestarts;
+    }
+
+    /**
+     * {@hide}
+     * Returns the delay of the given restart after transient errors, doubled on every restart
+     *
+     * @param restart restarts so far, from 0
+     */
+    long backoffMillis(int restart) {
+        long delay = initialBackoffMillis;
+        for (int i = 0; i < restart && delay < maxBackoffMillis; i++) {
+            delay <<= 1;
+        }
+        return Math.min(delay, maxBackoffMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "FingerLockRestartPolicy{" +
+                "lockoutDurationMillis=" + lockoutDurationMillis +
+                ", initialBackoffMillis=" + initialBackoffMillis +
+                ", maxBackoffMillis=" + maxBackoffMillis +
+                ", maxRestarts=" + maxRestarts +
+                "}";
+    }
+
+    /**
+     * Creates a builder for the {@link FingerLockRestartPolicy}
+     */
+    public static final class Builder {
+
+        private long lockoutDurationMillis = 30000;
+        private long initialBackoffMillis = 1000;
+        private long maxBackoffMillis = 30000;
+        private int maxRestarts = 5;
+
+        /**
+         * Set the duration of the system lockout, 30 seconds by default as in the stock
+         * fingerprint service
+         *
+         * @param millis duration in milliseconds
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setLockoutDuration(@IntRange(from = 0) long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("millis must not be negative");
+            }
+            this.lockoutDurationMillis = millis;
+            return this;
+        }
+
+        /**
+         * Set the backoff after transient errors. The delay starts at the initial one and it's
+         * doubled on every restart in a row, up to the maximum one
+         *
+         * @param initialMillis delay before the first restart in milliseconds, 1 second by default
+         * @param maxMillis     maximum delay in milliseconds, 30 seconds by default
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setBackoff(@IntRange(from = 1) long initialMillis, @IntRange(from = 1) long maxMillis) {
+            if (initialMillis <= 0 || maxMillis < initialMillis) {
+                throw new IllegalArgumentException("initialMillis must be positive and not greater than maxMillis");
+            }
+            this.initialBackoffMillis = initialMillis;
+            this.maxBackoffMillis = maxMillis;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of restarts in a row after transient errors. The count is reset
+         * by any sensor event other than an error.
+         *
+         * @param restarts number of restarts, 5 by default. <code>0</code> restarts after a
+         *                 lockout only
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setMaxRestarts(@IntRange(from = 0) int restarts) {
+            if (restarts < 0) {
+                throw new IllegalArgumentException("restarts must not be negative");
+            }
+            this.maxRestarts = restarts;
+            return this;
+        }
+
+        /**
+         * Creates the {@link FingerLockRestartPolicy}
+         *
+         * @return restart policy
+         */
+        public FingerLockRestartPolicy build() {
+            return new FingerLockRestartPolicy(this);
+        }
+    }
+}
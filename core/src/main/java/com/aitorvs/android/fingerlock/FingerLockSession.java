@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.security.keystore.UserNotAuthenticatedException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import javax.crypto.Cipher;
+
+/**
+ * Authentication session of a time-bound key (see
+ * {@link FingerLockKeySpec.Builder#setUserAuthenticationValidityDurationSeconds(int)}).
+ * <p>
+ * The session starts when the user authenticates and lasts for the key validity window. Within
+ * that window any number of ciphers can be initialized with the key, without scanning again.
+ * Get it through {@link FingerLockManager#getSession()}.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class FingerLockSession {
+
+    private final Key mKey;
+    private final long mExpiresAt;
+    private volatile boolean mExpired;
+
+    FingerLockSession(@NonNull Key key, int validitySeconds, long authenticatedAt) {
+        mKey = key;
+        mExpiresAt = authenticatedAt + validitySeconds * 1000L;
+    }
+
+    /**
+     * Returns the name of the key authorized by this session
+     *
+     * @return key name
+     */
+    @NonNull
+    public String getKeyName() {
+        return mKey.key();
+    }
+
+    /**
+     * Returns the remaining time of the validity window
+     *
+     * @return remaining time in milliseconds, <code>0</code> when expired
+     */
+    public long getRemainingMillis() {
+        if (mExpired) {
+            return 0;
+        }
+        long remaining = mExpiresAt - SystemClock.elapsedRealtime();
+        return remaining > 0 ? remaining : 0;
+    }
+
+    /**
+     * Returns <code>true</code> while the validity window is open
+     *
+     * @return <code>true</code> when valid
+     */
+    public boolean isValid() {
+        return getRemainingMillis() > 0;
+    }
+
+    /**
+     * Returns a new {@link Cipher} initialized with the key. It hits the key store, call it from a
+     * background thread.
+     *
+     * @param cipherMode either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param iv         initialization vector, required to decrypt. Pass <code>null</code> to
+     *                   encrypt and read the generated one with {@link Cipher#getIV()}
+     * @return initialized cipher or <code>null</code> when the session has expired or the key
+     * has been invalidated
+     * @throws IllegalArgumentException when the key store rejects the cipher mode or the IV
+     */
+    @WorkerThread
+    @Nullable
+    public Cipher newCipher(int cipherMode, @Nullable byte[] iv) {
+        if (!isValid()) {
+            return null;
+        }
+        Cipher cipher;
+        try {
+            cipher = mKey.newCipher(cipherMode, iv);
+        } catch (NullKeyException e) {
+            cipher = null;
+        } catch (UserNotAuthenticatedException e) {
+            // the key store closed the window before we did
+            cipher = null;
+        }
+        if (cipher == null) {
+            mExpired = true;
+        }
+        return cipher;
+    }
+
+    /**
+     * Expire the session before the validity window ends. Note the key itself remains
+     * authorized in the key store until the window ends.
+     */
+    public void invalidate() {
+        mExpired = true;
+    }
+
+    @Override
+    public String toString() {
+        return "FingerLockSession{" +
+                "keyName=" + mKey.key() +
+                ", remainingMillis=" + getRemainingMillis() +
+                "}";
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.annotation.TargetApi;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated fingerprint hardware and key store, to run the library where there's no sensor:
+ * emulators and devices running Android 6.0 (API 23) or later, CI, or a plain JVM (along with
+ * the mockable android.jar).
+ * <p>
+ * Once installed, every {@link FingerLockManager} created afterwards runs on top of the
+ * simulator. It builds on the fingerprint framework classes, so it is not installed on older
+ * Android versions, where the library keeps reporting fingerprint as not supported:
+ * <ul>
+ * <li>the sensor plays a script of {@link Touch}es while authenticating, each one after the
+ * configured latency. When the script is empty the default touch, if any, is played</li>
+ * <li>as the system sensor, it locks out after too many failed attempts and it keeps reporting
+ * the lockout until it expires</li>
+ * <li>the keys live in an in-process stand-in for the AndroidKeyStore, see
+ * {@link #invalidateKeys()}</li>
+ * </ul>
+ * <pre>
+ * FingerLockSimulator simulator = new FingerLockSimulator.Builder()
+ *         .setLatency(50)
+ *         .build()
+ *         .install();
+ * simulator.enqueue(Touch.failure());
+ * simulator.enqueue(Touch.help(FingerprintManager.FINGERPRINT_ACQUIRED_PARTIAL, "Partial"), 3);
+ * simulator.enqueue(Touch.success());
+ * ...
+ * FingerLockSimulator.uninstall();
+ * </pre>
+ * Events are delivered in the callback handler when given, otherwise in the main thread. There's
+ * no main looper on the JVM, set a main executor through {@link Builder#setMainExecutor(Executor)}.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class FingerLockSimulator {
+
+    private static final String TAG = FingerLockSimulator.class.getSimpleName();
+    private static final String THREAD_NAME = "FingerLock-Simulator";
+
+    private static final FingerLockApi.Factory FACTORY = new FingerLockApi.Factory() {
+        @NonNull
+        @Override
+        public FingerLockApi.FingerLockImpl create() {
+            return new FingerLockApi23();
+        }
+    };
+
+    private static final Object sLock = new Object();
+    private static FingerLockSimulator sInstalled;
+
+    private final long mLatencyMillis;
+    private final Touch mDefaultTouch;
+    private final Executor mMainExecutor;
+    private final int mMaxFailedAttempts;
+    private final long mLockoutMillis;
+
+    private final Sensor mSensor = new Sensor();
+    private final SimulatedKeyStore mKeyStore = new SimulatedKeyStore();
+
+    private volatile boolean mHardwareDetected;
+    private volatile boolean mFingerprintsEnrolled;
+
+    // guards the script and the session state
+    private final Object mLock = new Object();
+    private final ArrayDeque<Touch> mScript = new ArrayDeque<>();
+    private Session mSession;
+    private int mFailedAttempts;
+    // System.nanoTime(), SystemClock is not available in the JVM
+    private long mLockoutDeadline;
+    private boolean mLockedOut;
+    private int mAuthentications;
+    private ScheduledExecutorService mScheduler;
+    private Handler mMainHandler;
+
+    private FingerLockSimulator(Builder builder) {
+        mLatencyMillis = builder.latencyMillis;
+        mDefaultTouch = builder.defaultTouch;
+        mMainExecutor = builder.mainExecutor;
+        mMaxFailedAttempts = builder.maxFailedAttempts;
+        mLockoutMillis = builder.lockoutMillis;
+        mHardwareDetected = builder.hardwareDetected;
+        mFingerprintsEnrolled = builder.fingerprintsEnrolled;
+    }
+
+    /**
+     * Installs the simulator, replacing the installed one if any. Install it before creating the
+     * {@link FingerLockManager}s, the existing ones keep running on their previous backend.
+     * No-op before Android 6.0 (API 23).
+     *
+     * @return this simulator
+     */
+    @NonNull
+    public FingerLockSimulator install() {
+        if (!FingerLockApi.canLoadApi23()) {
+            // the fingerprint framework classes the simulator builds on are missing
+            if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "install: not supported before API 23");
+            return this;
+        }
+        synchronized (sLock) {
+            if (sInstalled != null) {
+                sInstalled.shutdown();
+            }
+            sInstalled = this;
+            synchronized (mLock) {
+                mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread thread = new Thread(r, THREAD_NAME);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            FingerLockApi23.setSensor(mSensor);
+            KeyRegistry.setBackend(mKeyStore);
+            KeyExecutor.setExecutors(null, mMainExecutor);
+            FingerLockApi.setFactory(FACTORY);
+        }
+        return this;
+    }
+
+    /**
+     * Uninstalls the installed simulator, if any. The {@link FingerLockManager}s created
+     * afterwards run on the platform again.
+     */
+    public static void uninstall() {
+        synchronized (sLock) {
+            if (sInstalled == null) {
+                return;
+            }
+            sInstalled.shutdown();
+            sInstalled = null;
+            FingerLockApi.setFactory(null);
+            FingerLockApi23.setSensor(null);
+            KeyRegistry.setBackend(KeyStoreBackend.ANDROID);
+            KeyExecutor.setExecutors(null, null);
+        }
+    }
+
+    private void shutdown() {
+        synchronized (mLock) {
+            mSession = null;
+            if (mScheduler != null) {
+                mScheduler.shutdownNow();
+                mScheduler = null;
+            }
+        }
+    }
+
+    /**
+     * Adds a touch to the script
+     *
+     * @param touch touch to play
+     * @return this simulator
+     */
+    @NonNull
+    public FingerLockSimulator enqueue(@NonNull Touch touch) {
+        return enqueue(touch, 1);
+    }
+
+    /**
+     * Adds the same touch several times to the script, e.g. a burst of help events
+     *
+     * @param touch touch to play
+     * @param times number of times
+     * @return this simulator
+     */
+    @NonNull
+    public FingerLockSimulator enqueue(@NonNull Touch touch, @IntRange(from = 1) int times) {
+        synchronized (mLock) {
+            for (int i = 0; i < times; i++) {
+                mScript.add(touch);
+            }
+            playLocked();
+        }
+        return this;
+    }
+
+    /**
+     * Drops the touches not played yet
+     */
+    public void clearScript() {
+        synchronized (mLock) {
+            mScript.clear();
+        }
+    }
+
+    /**
+     * Permanently invalidates the existing keys, as the system does when a new fingerprint is
+     * enrolled or the secure lock screen is disabled
+     */
+    public void invalidateKeys() {
+        mKeyStore.invalidateKeys();
+    }
+
+    /**
+     * Deletes all the keys
+     */
+    public void deleteKeys() {
+        mKeyStore.deleteKeys();
+    }
+
+    /**
+     * Simulates the presence of the fingerprint hardware. Picked up on the next registration.
+     *
+     * @param hardwareDetected <code>true</code> when there's hardware
+     */
+    public void setHardwareDetected(boolean hardwareDetected) {
+        mHardwareDetected = hardwareDetected;
+        FingerprintCapabilities.invalidate();
+    }
+
+    /**
+     * Simulates the fingerprint enrollment. Picked up on the next registration.
+     *
+     * @param fingerprintsEnrolled <code>true</code> when there's at least one fingerprint enrolled
+     */
+    public void setFingerprintsEnrolled(boolean fingerprintsEnrolled) {
+        mFingerprintsEnrolled = fingerprintsEnrolled;
+        FingerprintCapabilities.invalidate();
+    }
+
+    /**
+     * Ends the lockout and resets the failed attempts
+     */
+    public void resetLockout() {
+        synchronized (mLock) {
+            mLockedOut = false;
+            mFailedAttempts = 0;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> while the sensor is authenticating
+     *
+     * @return <code>true</code> when authenticating
+     */
+    public boolean isAuthenticating() {
+        synchronized (mLock) {
+            return mSession != null;
+        }
+    }
+
+    /**
+     * Returns the number of authentications started since installed
+     *
+     * @return number of authentications
+     */
+    public int getAuthenticationCount() {
+        synchronized (mLock) {
+            return mAuthentications;
+        }
+    }
+
+    /**
+     * {@hide}
+     * Returns the simulated sensor
+     */
+    @NonNull
+    FingerprintSensor sensor() {
+        return mSensor;
+    }
+
+    private boolean isLockedOutLocked() {
+        if (mLockedOut && System.nanoTime() - mLockoutDeadline >= 0) {
+            mLockedOut = false;
+        }
+        return mLockedOut;
+    }
+
+    private void playLocked() {
+        final Session session = mSession;
+        if (session == null || session.pending || mScheduler == null) {
+            return;
+        }
+        Touch touch = isLockedOutLocked() ? Touch.LOCKED_OUT : mScript.poll();
+        if (touch == null) {
+            touch = mDefaultTouch;
+        }
+        if (touch == null) {
+            // wait for the script
+            return;
+        }
+
+        session.pending = true;
+        final Touch next = touch;
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                dispatch(session, new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(session, next);
+                    }
+                });
+            }
+        }, mLatencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch(@NonNull Session session, @NonNull Runnable event) {
+        if (session.handler != null) {
+            session.handler.post(event);
+        } else if (mMainExecutor != null) {
+            mMainExecutor.execute(event);
+        } else {
+            synchronized (mLock) {
+                if (mMainHandler == null) {
+                    mMainHandler = new Handler(Looper.getMainLooper());
+                }
+            }
+            mMainHandler.post(event);
+        }
+    }
+
+    private void deliver(@NonNull Session session, @NonNull Touch touch) {
+        synchronized (mLock) {
+            if (mSession != session || session.cancel.isCanceled()) {
+                // cancelled or replaced by a new authentication
+                return;
+            }
+            session.pending = false;
+
+            if (touch.type == Touch.FAILURE && ++mFailedAttempts >= mMaxFailedAttempts) {
+                // too many attempts, the system locks the sensor out
+                touch = Touch.lockout();
+            }
+            if (touch.type == Touch.LOCKOUT && !isLockedOutLocked()) {
+                mLockedOut = true;
+                mLockoutDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mLockoutMillis);
+            }
+            if (touch.type == Touch.SUCCESS || touch.type == Touch.LOCKOUT) {
+                mFailedAttempts = 0;
+            }
+            if (touch.isTerminal()) {
+                mSession = null;
+            }
+        }
+
+        FingerprintManager.AuthenticationCallback callback = session.callback;
+        switch (touch.type) {
+            case Touch.SUCCESS:
+                // the result can't be built outside the system, the library does not use it
+                callback.onAuthenticationSucceeded(null);
+                break;
+            case Touch.FAILURE:
+                callback.onAuthenticationFailed();
+                break;
+            case Touch.HELP:
+                callback.onAuthenticationHelp(touch.code, touch.message);
+                break;
+            default:
+                callback.onAuthenticationError(touch.code, touch.message);
+                break;
+        }
+
+        synchronized (mLock) {
+            playLocked();
+        }
+    }
+
+    /**
+     * One authentication, from {@link FingerprintSensor#authenticate} until a terminal touch or
+     * the cancellation
+     */
+    private static final class Session {
+        final FingerprintManager.AuthenticationCallback callback;
+        final CancellationSignal cancel;
+        final Handler handler;
+        // a touch is scheduled
+        boolean pending;
+
+        Session(FingerprintManager.AuthenticationCallback callback, CancellationSignal cancel, Handler handler) {
+            this.callback = callback;
+            this.cancel = cancel;
+            this.handler = handler;
+        }
+    }
+
+    private final class Sensor implements FingerprintSensor {
+
+        @Override
+        public boolean isHardwareDetected() {
+            return mHardwareDetected;
+        }
+
+        @Override
+        public boolean hasEnrolledFingerprints() {
+            return mFingerprintsEnrolled;
+        }
+
+        @Override
+        public void authenticate(@Nullable FingerprintManager.CryptoObject crypto, @NonNull CancellationSignal cancel,
+                                 @NonNull FingerprintManager.AuthenticationCallback callback, @Nullable Handler handler) {
+            if (cancel.isCanceled()) {
+                return;
+            }
+            final Session session = new Session(callback, cancel, handler);
+            cancel.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    synchronized (mLock) {
+                        if (mSession != session) {
+                            return;
+                        }
+                        mSession = null;
+                    }
+                    // as the system sensor does
+                    dispatch(session, new Runnable() {
+                        @Override
+                        public void run() {
+                            session.callback.onAuthenticationError(FingerprintManager.FINGERPRINT_ERROR_CANCELED,
+                                    "Fingerprint operation canceled.");
+                        }
+                    });
+                }
+            });
+            synchronized (mLock) {
+                // there's only one sensor, the new authentication replaces the current one
+                mSession = session;
+                mAuthentications++;
+                playLocked();
+            }
+        }
+    }
+
+    /**
+     * One simulated sensor event
+     */
+    public static final class Touch {
+
+        static final int SUCCESS = 0;
+        static final int FAILURE = 1;
+        static final int HELP = 2;
+        static final int ERROR = 3;
+        static final int LOCKOUT = 4;
+
+        private static final Touch SUCCEEDED = new Touch(SUCCESS, 0, null);
+        private static final Touch FAILED = new Touch(FAILURE, 0, null);
+        // reported while locked out
+        static final Touch LOCKED_OUT = new Touch(LOCKOUT, FingerprintManager.FINGERPRINT_ERROR_LOCKOUT,
+                "Too many attempts. Try again later.");
+
+        final int type;
+        final int code;
+        final CharSequence message;
+
+        private Touch(int type, int code, CharSequence message) {
+            this.type = type;
+            this.code = code;
+            this.message = message;
+        }
+
+        /**
+         * A recognized fingerprint. Ends the authentication
+         */
+        @NonNull
+        public static Touch success() {
+            return SUCCEEDED;
+        }
+
+        /**
+         * A valid but not recognized fingerprint. Too many in a row lock the sensor out
+         */
+        @NonNull
+        public static Touch failure() {
+            return FAILED;
+        }
+
+        /**
+         * A recoverable error, e.g. {@link FingerprintManager#FINGERPRINT_ACQUIRED_PARTIAL}
+         *
+         * @param helpCode    help code
+         * @param helpMessage help message
+         */
+        @NonNull
+        public static Touch help(int helpCode, @Nullable CharSequence helpMessage) {
+            return new Touch(HELP, helpCode, helpMessage);
+        }
+
+        /**
+         * An unrecoverable error, e.g. {@link FingerprintManager#FINGERPRINT_ERROR_HW_UNAVAILABLE}.
+         * Ends the authentication
+         *
+         * @param errorCode    error code
+         * @param errorMessage error message
+         */
+        @NonNull
+        public static Touch error(int errorCode, @Nullable CharSequence errorMessage) {
+            return new Touch(ERROR, errorCode, errorMessage);
+        }
+
+        /**
+         * Locks the sensor out for the configured duration. Ends the authentication
+         */
+        @NonNull
+        public static Touch lockout() {
+            return LOCKED_OUT;
+        }
+
+        boolean isTerminal() {
+            return type == SUCCESS || type == ERROR || type == LOCKOUT;
+        }
+    }
+
+    /**
+     * Creates a builder for the {@link FingerLockSimulator}
+     */
+    public static final class Builder {
+
+        private long latencyMillis = 0;
+        private Touch defaultTouch;
+        private Executor mainExecutor;
+        private int maxFailedAttempts = 5;
+        private long lockoutMillis = 30000;
+        private boolean hardwareDetected = true;
+        private boolean fingerprintsEnrolled = true;
+
+        /**
+         * Set the latency of every sensor event
+         *
+         * @param millis latency in milliseconds, <code>0</code> by default
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setLatency(@IntRange(from = 0) long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("latency must be positive");
+            }
+            this.latencyMillis = millis;
+            return this;
+        }
+
+        /**
+         * Set the touch played when the script is empty, e.g. {@link Touch#success()} for
+         * unattended authentication cycles
+         *
+         * @param touch default touch, <code>null</code> (default) to wait for the script
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setDefaultTouch(@Nullable Touch touch) {
+            this.defaultTouch = touch;
+            return this;
+        }
+
+        /**
+         * Set the executor that stands for the main thread. Required where there's no main
+         * looper (JVM)
+         *
+         * @param executor main thread executor, <code>null</code> (default) for the main looper
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setMainExecutor(@Nullable Executor executor) {
+            this.mainExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Set the number of failed attempts in a row that lock the sensor out
+         *
+         * @param attempts failed attempts, <code>5</code> by default as the system sensor
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setMaxFailedAttempts(@IntRange(from = 1) int attempts) {
+            if (attempts < 1) {
+                throw new IllegalArgumentException("attempts must be positive");
+            }
+            this.maxFailedAttempts = attempts;
+            return this;
+        }
+
+        /**
+         * Set the lockout duration
+         *
+         * @param millis duration in milliseconds, <code>30000</code> by default as the system sensor
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setLockoutDuration(@IntRange(from = 0) long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("duration must be positive");
+            }
+            this.lockoutMillis = millis;
+            return this;
+        }
+
+        /**
+         * Set whether there's fingerprint hardware, <code>true</code> by default
+         *
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setHardwareDetected(boolean hardwareDetected) {
+            this.hardwareDetected = hardwareDetected;
+            return this;
+        }
+
+        /**
+         * Set whether there are fingerprints enrolled, <code>true</code> by default
+         *
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setFingerprintsEnrolled(boolean fingerprintsEnrolled) {
+            this.fingerprintsEnrolled = fingerprintsEnrolled;
+            return this;
+        }
+
+        /**
+         * Creates the {@link FingerLockSimulator}, not installed yet
+         *
+         * @return simulator
+         */
+        @NonNull
+        public FingerLockSimulator build() {
+            return new FingerLockSimulator(this);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.os.Build;
+import android.os.Trace;
+import android.support.annotation.NonNull;
+
+/**
+ * {@hide}
+ * {@link Trace} sections of the library, visible in systrace and Perfetto captures. Sections
+ * must end in the same thread they began.
+ */
+final class FingerLockTrace {
+
+    static final String KEY_STORE_LOAD = "FingerLock.keyStoreLoad";
+    static final String CIPHER_INIT = "FingerLock.cipherInit";
+    static final String KEY_GENERATION = "FingerLock.keyGeneration";
+    static final String AUTHENTICATE = "FingerLock.authenticate";
+    static final String DIALOG_CREATE = "FingerLock.dialogCreate";
+    static final String DIALOG_INFLATE = "FingerLock.dialogInflate";
+
+    // Trace is available from API 18
+    private static final boolean ENABLED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private FingerLockTrace() {
+    }
+
+    static void begin(@NonNull String section) {
+        if (ENABLED) {
+            Trace.beginSection(section);
+        }
+    }
+
+    static void end() {
+        if (ENABLED) {
+            Trace.endSection();
+        }
+    }
+}
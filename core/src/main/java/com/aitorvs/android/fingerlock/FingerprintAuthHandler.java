@@ -25,85 +25,188 @@ import android.annotation.TargetApi;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 
-import com.aitorvs.android.fingerlock.FingerLock;
-import com.aitorvs.android.fingerlock.FingerLockResultCallback;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.crypto.Cipher;
+
+/**
+ * {@hide}
+ * One authentication session. It's started once, moves to {@link AuthState#SCANNING} and ends
+ * in {@link AuthState#SUCCEEDED}, {@link AuthState#FAILED} or {@link AuthState#CANCELLED}.
+ * Sensor events arriving after the session ended are dropped.
+ */
 @TargetApi(Build.VERSION_CODES.M)
 class FingerprintAuthHandler extends FingerprintManager.AuthenticationCallback {
 
-    private final FingerprintManager.CryptoObject mCryptoObject;
-    private CancellationSignal mCancellationSignal;
-    private FingerLockResultCallback mCallback;
+    private static final String TAG = FingerprintAuthHandler.class.getSimpleName();
+
+    private final Cipher mCipher;
+    private final Key mKey;
+    private final FingerLockResultCallback mCallback;
+    private final RestartScheduler mRestart;
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+    private final AtomicInteger mState = new AtomicInteger(AuthState.REGISTERED);
+
+    // metrics, start of the scanning and whether the first sensor event has been seen
+    private volatile long mStartNanos;
+    private boolean mSensorEventSeen;
+
+    // reused for every sensor help/error event, created by the first one
+    private FingerLockError mError;
 
-    // flags when the operation is canceled internally
-    private boolean mSelfCancelled;
+    FingerprintAuthHandler(@Nullable Cipher cipher, Key key, FingerLockResultCallback callback) {
+        this(cipher, key, callback, null);
+    }
 
-    FingerprintAuthHandler(FingerprintManager.CryptoObject cryptoObject, FingerLockResultCallback callback) {
-        mCryptoObject = cryptoObject;
+    /**
+     * @param restart re-arms the sensor after errors, <code>null</code> to never restart
+     */
+    FingerprintAuthHandler(@Nullable Cipher cipher, Key key, FingerLockResultCallback callback,
+                           @Nullable RestartScheduler restart) {
+        mCipher = cipher;
+        mKey = key;
         mCallback = callback;
+        mRestart = restart;
     }
 
     public boolean isReady() {
-        return mCancellationSignal == null;
+        return mState.get() == AuthState.REGISTERED;
     }
 
     public boolean isStarted() {
         // authentication already started and scanning
-        return mCancellationSignal != null;
+        return mState.get() == AuthState.SCANNING;
+    }
+
+    @AuthState.State
+    public int state() {
+        return mState.get();
     }
 
+    /**
+     * Starts scanning. A session can only be started once
+     *
+     * @param sensor          fingerprint sensor
+     * @param callbackHandler handler to deliver the sensor events, <code>null</code> for the
+     *                        main thread
+     * @return <code>true</code> when the session was started by this call
+     */
     @RequiresPermission(Manifest.permission.USE_FINGERPRINT)
-    public void start(FingerprintManager fpm) {
-        if (fpm == null || mCallback == null) {
+    public boolean start(FingerprintSensor sensor, @Nullable Handler callbackHandler) {
+        if (sensor == null || mCallback == null) {
             // FIXME: 23/05/16 report error?
-            return;
+            return false;
+        }
+        if (!mState.compareAndSet(AuthState.REGISTERED, AuthState.SCANNING)) {
+            if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "start: ignored, state " + AuthState.name(mState.get()));
+            return false;
+        }
+        mStartNanos = Metrics.start();
+        FingerLockTrace.begin(FingerLockTrace.AUTHENTICATE);
+        try {
+            sensor.authenticate(mCipher != null ? new FingerprintManager.CryptoObject(mCipher) : null,
+                    mCancellationSignal, this, callbackHandler);
+        } finally {
+            FingerLockTrace.end();
         }
-        mSelfCancelled = false;
-        mCancellationSignal = new CancellationSignal();
-        fpm.authenticate(mCryptoObject, mCancellationSignal, 0 /* flags */, this, null);;
+        return true;
     }
 
-    public void stop(boolean self) {
-        if (mCancellationSignal != null) {
-            mSelfCancelled = self;
+    /**
+     * Cancels the session. No more events are delivered once this returns, the cancellation
+     * error reported by the system is dropped
+     */
+    public void stop() {
+        if (mState.compareAndSet(AuthState.SCANNING, AuthState.CANCELLED)) {
             mCancellationSignal.cancel();
-            mCancellationSignal = null;
+        } else {
+            // never started, make sure it can't be started anymore
+            mState.compareAndSet(AuthState.REGISTERED, AuthState.CANCELLED);
         }
     }
-    
+
     @Override
     public void onAuthenticationError(int errorCode, CharSequence errString) {
         super.onAuthenticationError(errorCode, errString);
-        if (mCallback != null && !mSelfCancelled) {
-            mCallback.onFingerLockError(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR, new Exception(errString.toString()));
+        // errors end the session, self cancellations already moved it to CANCELLED
+        if (mState.compareAndSet(AuthState.SCANNING, AuthState.FAILED)) {
+            onSensorEvent();
+            // scheduled before reporting, so that the listener can still cancel it
+            long restartDelay = mRestart != null ? mRestart.onError(errorCode) : FingerLockError.NO_RESTART;
+            FingerLockError.report(mCallback, error().set(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR, errorCode, errString)
+                    .setRestartDelay(restartDelay));
         }
     }
 
     @Override
     public void onAuthenticationHelp(int helpCode, CharSequence helpString) {
         super.onAuthenticationHelp(helpCode, helpString);
-        if (mCallback != null) {
-            mCallback.onFingerLockError(FingerLock.FINGERPRINT_ERROR_HELP, new Exception(helpString.toString()));
+        if (isStarted()) {
+            onSensorEvent();
+            if (mRestart != null) {
+                mRestart.onHelp();
+            }
+            FingerLockError.report(mCallback, error().set(FingerLock.FINGERPRINT_ERROR_HELP, helpCode, helpString));
         }
     }
 
     @Override
     public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
         super.onAuthenticationSucceeded(result);
-        if (mCallback != null) {
+        if (!mState.compareAndSet(AuthState.SCANNING, AuthState.SUCCEEDED)) {
+            // stopped in the meantime
+            if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "onAuthenticationSucceeded: dropped, state " + AuthState.name(mState.get()));
+            return;
+        }
+        onSensorEvent();
+        Metrics.phase(FingerLockMetricsListener.PHASE_SCAN_TO_SUCCESS, mStartNanos);
+        if (mRestart != null) {
+            mRestart.onSucceeded();
+        }
+        if (mKey != null) {
+            // opens the validity window of time-bound keys
+            mKey.onAuthenticated();
+        }
+        if (mCipher != null && mCallback instanceof FingerLockCipherCallback) {
+            // the cipher bound to the crypto object is now authorized
+            ((FingerLockCipherCallback) mCallback).onFingerLockAuthenticationSucceeded(mCipher);
+        } else {
             mCallback.onFingerLockAuthenticationSucceeded();
         }
-        // auto stop
-        stop(true);
     }
 
     @Override
     public void onAuthenticationFailed() {
         super.onAuthenticationFailed();
-        if (mCallback != null) {
-            mCallback.onFingerLockError(FingerLock.FINGERPRINT_NOT_RECOGNIZED, new Exception("Fingerprint not recognized, try again."));
+        // not recognized, the sensor keeps scanning
+        if (isStarted()) {
+            onSensorEvent();
+            if (mRestart != null) {
+                mRestart.onFailed();
+            }
+            FingerLockError.report(mCallback, FingerLockError.NOT_RECOGNIZED);
+        }
+    }
+
+    private FingerLockError error() {
+        // sensor events are delivered in the same thread. Most sessions succeed without any
+        // help or error event, do not pay for the error upfront
+        if (mError == null) {
+            mError = new FingerLockError(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR, null);
+        }
+        return mError;
+    }
+
+    private void onSensorEvent() {
+        // sensor events are delivered in the same thread
+        if (!mSensorEventSeen) {
+            mSensorEventSeen = true;
+            Metrics.phase(FingerLockMetricsListener.PHASE_FIRST_SENSOR_EVENT, mStartNanos);
         }
     }
 }
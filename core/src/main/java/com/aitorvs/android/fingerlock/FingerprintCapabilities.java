@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
+
+/**
+ * {@hide}
+ * Immutable snapshot of the device fingerprint capabilities.
+ * <p>
+ * Querying the capabilities takes a permission check and a couple of binder calls, so the
+ * snapshot is computed once and cached process-wide. It is only refreshed on lifecycle events
+ * that can change the answer, i.e. when the library is registered (<code>onResume</code>).
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class FingerprintCapabilities {
+
+    private static volatile FingerprintCapabilities sCurrent;
+
+    private final boolean permissionGranted;
+    private final boolean hardwareDetected;
+    private final boolean fingerprintsEnrolled;
+
+    private FingerprintCapabilities(boolean permissionGranted, boolean hardwareDetected, boolean fingerprintsEnrolled) {
+        this.permissionGranted = permissionGranted;
+        this.hardwareDetected = hardwareDetected;
+        this.fingerprintsEnrolled = fingerprintsEnrolled;
+    }
+
+    /**
+     * Returns the cached snapshot, computing it the first time
+     *
+     * @param context caller context
+     * @param sensor  fingerprint sensor
+     * @return capabilities snapshot
+     */
+    @NonNull
+    static FingerprintCapabilities current(@NonNull Context context, @Nullable FingerprintSensor sensor) {
+        FingerprintCapabilities current = sCurrent;
+        if (current == null) {
+            current = refresh(context, sensor);
+        }
+        return current;
+    }
+
+    /**
+     * Queries the system and replaces the cached snapshot
+     *
+     * @param context caller context
+     * @param sensor  fingerprint sensor
+     * @return the new capabilities snapshot
+     */
+    @NonNull
+    static FingerprintCapabilities refresh(@NonNull Context context, @Nullable FingerprintSensor sensor) {
+        FingerprintCapabilities current = query(context, sensor);
+        sCurrent = current;
+        return current;
+    }
+
+    /**
+     * Drops the cached snapshot, the next query hits the system
+     */
+    static void invalidate() {
+        sCurrent = null;
+    }
+
+    private static FingerprintCapabilities query(@NonNull Context context, @Nullable FingerprintSensor sensor) {
+        // check permissions
+        int granted = ContextCompat.checkSelfPermission(context, android.Manifest.permission.USE_FINGERPRINT);
+        if (granted != PackageManager.PERMISSION_GRANTED || sensor == null) {
+            // not granted, no need to go further
+            return new FingerprintCapabilities(granted == PackageManager.PERMISSION_GRANTED, false, false);
+        }
+
+        //noinspection MissingPermission
+        boolean hardwareDetected = sensor.isHardwareDetected();
+        //noinspection MissingPermission
+        boolean fingerprintsEnrolled = hardwareDetected && sensor.hasEnrolledFingerprints();
+        return new FingerprintCapabilities(true, hardwareDetected, fingerprintsEnrolled);
+    }
+
+    /**
+     * Returns <code>true</code> when the <code>USE_FINGERPRINT</code> permission is granted
+     *
+     * @return <code>true</code> when granted
+     */
+    boolean isPermissionGranted() {
+        return permissionGranted;
+    }
+
+    /**
+     * Returns <code>true</code> when fingerprint authentication is available and supported
+     *
+     * @return <code>true</code> when supported
+     */
+    boolean isFingerprintAuthSupported() {
+        return permissionGranted && hardwareDetected && fingerprintsEnrolled;
+    }
+
+    /**
+     * Returns <code>true</code> when the user has at least one fingerprint registered
+     *
+     * @return <code>true</code> when at least one fingerprint is registered
+     */
+    boolean isFingerprintRegistered() {
+        return isFingerprintAuthSupported();
+    }
+
+    @Override
+    public String toString() {
+        return "FingerprintCapabilities{" +
+                "permissionGranted=" + permissionGranted +
+                ", hardwareDetected=" + hardwareDetected +
+                ", fingerprintsEnrolled=" + fingerprintsEnrolled +
+                "}";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresPermission;
+
+/**
+ * {@hide}
+ * Fingerprint sensor used by the library. The system one wraps the {@link FingerprintManager},
+ * other implementations stand in for the hardware where there's none (JVM, emulators).
+ */
+@TargetApi(Build.VERSION_CODES.M)
+interface FingerprintSensor {
+
+    @RequiresPermission(Manifest.permission.USE_FINGERPRINT)
+    boolean isHardwareDetected();
+
+    @RequiresPermission(Manifest.permission.USE_FINGERPRINT)
+    boolean hasEnrolledFingerprints();
+
+    /**
+     * Starts scanning, see
+     * {@link FingerprintManager#authenticate(FingerprintManager.CryptoObject, CancellationSignal, int, FingerprintManager.AuthenticationCallback, Handler)}
+     */
+    @RequiresPermission(Manifest.permission.USE_FINGERPRINT)
+    void authenticate(@Nullable FingerprintManager.CryptoObject crypto, @NonNull CancellationSignal cancel,
+                      @NonNull FingerprintManager.AuthenticationCallback callback, @Nullable Handler handler);
+
+    /**
+     * The system fingerprint sensor
+     */
+    final class SystemSensor implements FingerprintSensor {
+
+        private final FingerprintManager mFingerprintManager;
+
+        SystemSensor(@NonNull FingerprintManager fingerprintManager) {
+            mFingerprintManager = fingerprintManager;
+        }
+
+        @SuppressWarnings("MissingPermission")
+        @Override
+        public boolean isHardwareDetected() {
+            return mFingerprintManager.isHardwareDetected();
+        }
+
+        @SuppressWarnings("MissingPermission")
+        @Override
+        public boolean hasEnrolledFingerprints() {
+            return mFingerprintManager.hasEnrolledFingerprints();
+        }
+
+        @SuppressWarnings("MissingPermission")
+        @Override
+        public void authenticate(@Nullable FingerprintManager.CryptoObject crypto, @NonNull CancellationSignal cancel,
+                                 @NonNull FingerprintManager.AuthenticationCallback callback, @Nullable Handler handler) {
+            mFingerprintManager.authenticate(crypto, cancel, 0 /* flags */, callback, handler);
+        }
+    }
+}
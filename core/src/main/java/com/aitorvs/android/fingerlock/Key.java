@@ -22,51 +22,59 @@ package com.aitorvs.android.fingerlock;
 
 import android.annotation.TargetApi;
 import android.os.Build;
-import android.security.keystore.KeyGenParameterSpec;
-import android.security.keystore.KeyProperties;
+import android.os.SystemClock;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.UserNotAuthenticatedException;
 import android.support.annotation.NonNull;
-import android.util.Log;
+import android.support.annotation.Nullable;
 
-import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.security.spec.AlgorithmParameterSpec;
 
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
 
 @TargetApi(Build.VERSION_CODES.M)
 final class Key {
     private static final String TAG = Key.class.getSimpleName();
-    private final KeyGenerator keyGenerator;
     private final Cipher cipher;
     private final KeyStore keyStore;
+    private final KeyStoreBackend backend;
     private final String keyName;
+    private final FingerLockKeySpec spec;
 
-    public Key(@NonNull String keyName) {
-        try {
-
-            this.keyStore = KeyStore.getInstance("AndroidKeyStore");
-            this.keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
-            this.keyName = keyName;
+    // authentication session, only for time-bound keys
+    private volatile FingerLockSession session;
 
-        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-            throw new RuntimeException("Failed to get the keyGenerator", e);
-        } catch (KeyStoreException e) {
-            throw new RuntimeException("Failed to init keyStore", e);
-        }
+    /**
+     * Use {@link KeyRegistry#obtain(String)} to get a cached instance instead.
+     *
+     * @param keyName  key name
+     * @param keyStore already loaded key store
+     * @param backend  key store backend the key store comes from
+     * @param spec     key generation parameters
+     */
+    Key(@NonNull String keyName, @NonNull KeyStore keyStore, @NonNull KeyStoreBackend backend, @NonNull FingerLockKeySpec spec) {
+        this.spec = spec;
+        this.keyStore = keyStore;
+        this.backend = backend;
+        this.keyName = keyName;
+        this.cipher = newCipherInstance();
+    }
 
+    private Cipher newCipherInstance() {
         try {
-            this.cipher = Cipher.getInstance(KeyProperties.KEY_ALGORITHM_AES + "/"
-                    + KeyProperties.BLOCK_MODE_CBC + "/"
-                    + KeyProperties.ENCRYPTION_PADDING_PKCS7);
+            // the transformation follows the key spec, e.g. AES/GCM/NoPadding
+            return backend.newCipher(spec.getTransformation());
         } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
             throw new RuntimeException("Failed to get an instance of Cipher", e);
         }
@@ -76,6 +84,32 @@ final class Key {
         return this.keyName;
     }
 
+    @NonNull
+    public FingerLockKeySpec spec() {
+        return this.spec;
+    }
+
+    /**
+     * Called when the user successfully authenticates. Opens a new session for time-bound keys.
+     */
+    void onAuthenticated() {
+        if (spec.isTimeBound()) {
+            session = new FingerLockSession(this, spec.getUserAuthenticationValidityDurationSeconds(),
+                    SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Returns the current authentication session of a time-bound key
+     *
+     * @return valid session or <code>null</code>
+     */
+    @Nullable
+    public FingerLockSession session() {
+        FingerLockSession current = session;
+        return current != null && current.isValid() ? current : null;
+    }
+
     /**
      * Returns whether the key is still valid or the user needs to validate the key prior to
      * authenticate.
@@ -86,24 +120,35 @@ final class Key {
      * @return <code>true</code> when key is valid
      * @throws NullKeyException when the key has not been created
      */
-    public boolean isKeyValid() throws NullKeyException {
+    public synchronized boolean isKeyValid() throws NullKeyException {
 
-        if (BuildConfig.DEBUG) Log.d(TAG, "initCipher with key " + keyName);
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "initCipher with key " + keyName);
 
+        long start = Metrics.start();
         try {
-            keyStore.load(null);
+            // the key store is loaded once by the registry, no need to reload it here
             SecretKey secretKey = (SecretKey) keyStore.getKey(keyName, null /* password */);
             if (secretKey == null) {
                 // the key has not been created. Notify so that it can be created for the first
                 // time
                 throw new NullKeyException();
             }
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            FingerLockTrace.begin(FingerLockTrace.CIPHER_INIT);
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            } finally {
+                FingerLockTrace.end();
+            }
 
             // the user has recently authenticated, we get here.
             return true;
 
+        } catch (UserNotAuthenticatedException e) {
+            // time-bound key out of its validity window, still a valid key
+            return true;
         } catch (InvalidKeyException e) {
+            // invalidated key, next registration will get a fresh handle
+            KeyRegistry.evict(this);
             return false;
         } catch (KeyStoreException e) {
             throw new RuntimeException("KeyStore not initialized", e);
@@ -111,39 +156,172 @@ final class Key {
             throw new RuntimeException("Algorithm for recovering the key cannot be found", e);
         } catch (UnrecoverableKeyException e) {
             throw new RuntimeException("Key cannot be recovered", e);
-        } catch (CertificateException | IOException e) {
-            throw new RuntimeException("KeyStore load error", e);
+        } finally {
+            Metrics.phase(FingerLockMetricsListener.PHASE_KEY_VALIDATION, start);
         }
     }
 
-    public boolean recreateKey() {
+    /**
+     * Returns a new {@link Cipher} initialized with the key, ready to be bound to a
+     * {@link android.hardware.fingerprint.FingerprintManager.CryptoObject}.
+     *
+     * @param opmode either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param iv     initialization vector, required to decrypt. Pass <code>null</code> to encrypt
+     *               and let the key store generate a random one (see {@link Cipher#getIV()})
+     * @return initialized cipher or <code>null</code> when the key has been invalidated
+     * @throws NullKeyException               when the key has not been created
+     * @throws UserNotAuthenticatedException when a time-bound key is out of its validity window
+     * @throws IllegalArgumentException      when the key store rejects the cipher mode or the IV
+     */
+    public synchronized Cipher newCipher(int opmode, @Nullable byte[] iv) throws NullKeyException, UserNotAuthenticatedException {
+        long start = Metrics.start();
         try {
-            keyStore.load(null);
+            SecretKey secretKey = (SecretKey) keyStore.getKey(keyName, null /* password */);
+            if (secretKey == null) {
+                throw new NullKeyException();
+            }
+            Cipher cipher = newCipherInstance();
+            FingerLockTrace.begin(FingerLockTrace.CIPHER_INIT);
+            try {
+                if (iv != null) {
+                    cipher.init(opmode, secretKey, parameterSpec(iv));
+                } else {
+                    cipher.init(opmode, secretKey);
+                }
+            } finally {
+                FingerLockTrace.end();
+            }
+            return cipher;
+
+        } catch (UserNotAuthenticatedException e) {
+            throw e;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            // invalidated key, next registration will get a fresh handle
+            KeyRegistry.evict(this);
+            return null;
+        } catch (InvalidKeyException e) {
+            // the key store rejected the initialization, e.g. no IV to decrypt
+            throw new IllegalArgumentException("Cipher initialization failed", e);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new IllegalArgumentException("Invalid initialization vector", e);
+        } catch (KeyStoreException e) {
+            throw new RuntimeException("KeyStore not initialized", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Algorithm for recovering the key cannot be found", e);
+        } catch (UnrecoverableKeyException e) {
+            throw new RuntimeException("Key cannot be recovered", e);
+        } finally {
+            Metrics.phase(FingerLockMetricsListener.PHASE_CIPHER_INIT, start);
+        }
+    }
 
+    private AlgorithmParameterSpec parameterSpec(@NonNull byte[] iv) {
+        // GCM carries the tag length along with the nonce
+        return spec.isAuthenticatedEncryption()
+                ? new GCMParameterSpec(FingerLockKeySpec.GCM_TAG_LENGTH, iv)
+                : new IvParameterSpec(iv);
+    }
 
-            // Set the alias of the entry in Android KeyStore where the key will appear
-            // and the constrains (purposes) in the constructor of the Builder
-            keyGenerator.init(new KeyGenParameterSpec.Builder(keyName,
-                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
-                    .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
-                    // Require the user to authenticate with a fingerprint to authorize every use
-                    // of the key
-                    .setUserAuthenticationRequired(true)
-                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7)
-                    .build());
+    public synchronized boolean recreateKey() {
+        long start = Metrics.start();
+        FingerLockTrace.begin(FingerLockTrace.KEY_GENERATION);
+        try {
+            backend.generateKey(keyName, spec);
+            session = null;
 
-            keyGenerator.generateKey();
+            if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "Key \"" + keyName + "\" recreated");
 
-            Log.d(TAG, String.format("Key \"%s\" recreated", keyName));
+            // drop the cached handle, the new key will be picked up by a fresh one
+            KeyRegistry.evict(this);
 
             return true;
 
-        } catch (IllegalArgumentException | IOException | NoSuchAlgorithmException | CertificateException | InvalidAlgorithmParameterException e) {
-            Log.e(TAG, "recreateKey: ", e);
+        } catch (IllegalArgumentException | IllegalStateException | GeneralSecurityException e) {
+            // IllegalStateException is thrown when there's no secure lock screen or no
+            // fingerprint enrolled
+            FingerLockLog.e(TAG, "recreateKey: ", e);
             return false;
+        } finally {
+            FingerLockTrace.end();
+            Metrics.phase(FingerLockMetricsListener.PHASE_KEY_GENERATION, start);
         }
     }
 
+    /**
+     * Asynchronous version of {@link #isKeyValid()}. The key store work is done in a background
+     * thread and the result is reported in the main thread through
+     * {@link FingerLockResultCallback#onFingerLockScanning(boolean)}. When the key has not been
+     * created yet, it is created first.
+     * {@link FingerLockResultCallback#onFingerLockError(int, Exception)} is called when the key
+     * cannot be created.
+     *
+     * @param callback result callback
+     */
+    public void isKeyValidAsync(@NonNull final FingerLockResultCallback callback) {
+        KeyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean valid;
+                try {
+                    valid = isKeyValid();
+                } catch (NullKeyException e) {
+                    // key is not yet created. Create it and retry
+                    recreateKey();
+                    try {
+                        valid = isKeyValid();
+                    } catch (NullKeyException e1) {
+                        postError(callback);
+                        return;
+                    }
+                }
+
+                final boolean invalidKey = !valid;
+                KeyExecutor.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onFingerLockScanning(invalidKey);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #recreateKey()}. The key is generated in a background thread
+     * and {@link FingerLockResultCallback#onFingerLockReady()} is called in the main thread when
+     * done. {@link FingerLockResultCallback#onFingerLockError(int, Exception)} is called when the
+     * key cannot be created.
+     *
+     * @param callback result callback
+     */
+    public void recreateKeyAsync(@NonNull final FingerLockResultCallback callback) {
+        KeyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!recreateKey()) {
+                    postError(callback);
+                    return;
+                }
+
+                KeyExecutor.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onFingerLockReady();
+                    }
+                });
+            }
+        });
+    }
+
+    private static void postError(@NonNull final FingerLockResultCallback callback) {
+        KeyExecutor.postToMain(new Runnable() {
+            @Override
+            public void run() {
+                FingerLockError.report(callback, FingerLockError.KEY_CREATION_FAILED);
+            }
+        });
+    }
+
     @Override
     public String toString() {
         return "Key{" +
@@ -158,7 +336,16 @@ final class Key {
         Key other = (Key) o;
         return keyName.equals(other.keyName)
                 && keyStore == other.keyStore
-                && keyGenerator == other.keyGenerator
+                && backend == other.backend
                 && cipher == other.cipher;
     }
+
+    @Override
+    public int hashCode() {
+        int result = keyName.hashCode();
+        result = 31 * result + System.identityHashCode(keyStore);
+        result = 31 * result + System.identityHashCode(backend);
+        result = 31 * result + System.identityHashCode(cipher);
+        return result;
+    }
 }
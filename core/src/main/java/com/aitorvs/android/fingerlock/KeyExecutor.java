@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@hide}
+ * Executes the key store work (key generation, cipher initialization...) in a background thread
+ * and delivers the results back in the main thread.
+ */
+final class KeyExecutor {
+
+    private static final String THREAD_NAME = "FingerLock-Key";
+    private static final String TIMER_THREAD_NAME = "FingerLock-Timer";
+
+    private static final Object sLock = new Object();
+    private static ExecutorService sBackground;
+    private static Handler sMainHandler;
+
+    // replacements of the background thread and the main thread, tests only
+    private static Executor sBackgroundOverride;
+    private static Executor sMainOverride;
+    // delays the tasks posted to the replacement of the main thread
+    private static ScheduledExecutorService sTimer;
+
+    private KeyExecutor() {
+    }
+
+    /**
+     * Runs the given task in the key store background thread. Tasks are executed serially in
+     * submission order.
+     *
+     * @param task task to run
+     */
+    static void execute(@NonNull Runnable task) {
+        background().execute(task);
+    }
+
+    /**
+     * Posts the given task to the main thread
+     *
+     * @param task task to run
+     */
+    static void postToMain(@NonNull Runnable task) {
+        Executor main;
+        synchronized (sLock) {
+            main = sMainOverride;
+        }
+        if (main != null) {
+            main.execute(task);
+        } else {
+            mainHandler().post(task);
+        }
+    }
+
+    /**
+     * Posts the given task to the main thread, to run once the delay elapses
+     *
+     * @param task        task to run
+     * @param delayMillis delay in milliseconds
+     */
+    static void postToMainDelayed(@NonNull final Runnable task, long delayMillis) {
+        final Executor main;
+        synchronized (sLock) {
+            main = sMainOverride;
+        }
+        if (main != null) {
+            timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    main.execute(task);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            mainHandler().postDelayed(task, delayMillis);
+        }
+    }
+
+    /**
+     * Removes a delayed task posted to the main thread. Tasks posted to a replacement of the main
+     * thread are not removed, they must check whether they're still due.
+     *
+     * @param task task to remove
+     */
+    static void removeFromMain(@NonNull Runnable task) {
+        synchronized (sLock) {
+            if (sMainOverride != null) {
+                return;
+            }
+        }
+        mainHandler().removeCallbacks(task);
+    }
+
+    /**
+     * Replaces the background thread and the main thread, e.g. with direct executors where
+     * there's no main looper (JVM tests and benchmarks)
+     *
+     * @param background executor for the key store work, <code>null</code> for the default one
+     * @param main       executor for the results, <code>null</code> for the main thread
+     */
+    @VisibleForTesting
+    static void setExecutors(@Nullable Executor background, @Nullable Executor main) {
+        synchronized (sLock) {
+            sBackgroundOverride = background;
+            sMainOverride = main;
+        }
+    }
+
+    private static Executor background() {
+        synchronized (sLock) {
+            if (sBackgroundOverride != null) {
+                return sBackgroundOverride;
+            }
+            if (sBackground == null) {
+                sBackground = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull final Runnable r) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, THREAD_NAME);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return sBackground;
+        }
+    }
+
+    private static ScheduledExecutorService timer() {
+        synchronized (sLock) {
+            if (sTimer == null) {
+                sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread thread = new Thread(r, TIMER_THREAD_NAME);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return sTimer;
+        }
+    }
+
+    private static Handler mainHandler() {
+        synchronized (sLock) {
+            if (sMainHandler == null) {
+                sMainHandler = new Handler(Looper.getMainLooper());
+            }
+            return sMainHandler;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@hide}
+ * Process-wide registry of {@link Key} handles.
+ * <p>
+ * The AndroidKeyStore is loaded only once per process and the {@link Key} objects (and their JCA
+ * instances) are cached by key name, so that registering the library on every
+ * <code>onResume</code> does not rebuild them. An entry is only dropped when the key is
+ * recreated or found to be invalidated.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class KeyRegistry {
+
+    private static final String TAG = KeyRegistry.class.getSimpleName();
+
+    private static final Object sLock = new Object();
+    private static final Map<String, Key> sKeys = new HashMap<>();
+    private static final Map<String, FingerLockKeySpec> sSpecs = new HashMap<>();
+    private static KeyStoreBackend sBackend = KeyStoreBackend.ANDROID;
+    private static KeyStore sKeyStore;
+
+    private KeyRegistry() {
+    }
+
+    /**
+     * Returns the cached {@link Key} for the given key name, creating it the first time.
+     *
+     * @param keyName key name
+     * @return key handle
+     */
+    @NonNull
+    static Key obtain(@NonNull String keyName) {
+        synchronized (sLock) {
+            Key key = sKeys.get(keyName);
+            if (key == null) {
+                FingerLockKeySpec spec = sSpecs.get(keyName);
+                key = new Key(keyName, keyStore(), sBackend, spec != null ? spec : FingerLockKeySpec.DEFAULT);
+                sKeys.put(keyName, key);
+                if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "obtain: new handle for " + keyName);
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Sets the generation parameters of the given key. A cached handle with different parameters
+     * is dropped. The parameters only apply to keys created afterwards.
+     *
+     * @param keyName key name
+     * @param spec    key generation parameters
+     */
+    static void configure(@NonNull String keyName, @NonNull FingerLockKeySpec spec) {
+        synchronized (sLock) {
+            sSpecs.put(keyName, spec);
+            Key key = sKeys.get(keyName);
+            if (key != null && !key.spec().equals(spec)) {
+                sKeys.remove(keyName);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached handle of the given key, if any. The next call to
+     * {@link #obtain(String)} builds a fresh one.
+     *
+     * @param key key to drop
+     */
+    static void evict(@NonNull Key key) {
+        synchronized (sLock) {
+            // only drop the entry if it's the very same handle
+            if (sKeys.get(key.key()) == key) {
+                sKeys.remove(key.key());
+                if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "evict: " + key.key());
+            }
+        }
+    }
+
+    /**
+     * Replaces the key store backend, the AndroidKeyStore by default. The cached key handles
+     * and key store are dropped.
+     *
+     * @param backend key store backend
+     */
+    @VisibleForTesting
+    static void setBackend(@NonNull KeyStoreBackend backend) {
+        synchronized (sLock) {
+            sBackend = backend;
+            sKeys.clear();
+            sKeyStore = null;
+        }
+    }
+
+    /**
+     * Returns the process-wide key store, loading it the first time
+     *
+     * @return loaded key store
+     */
+    @NonNull
+    static KeyStore keyStore() {
+        synchronized (sLock) {
+            if (sKeyStore == null) {
+                long start = Metrics.start();
+                FingerLockTrace.begin(FingerLockTrace.KEY_STORE_LOAD);
+                try {
+                    sKeyStore = sBackend.loadKeyStore();
+                } catch (KeyStoreException e) {
+                    throw new RuntimeException("Failed to init keyStore", e);
+                } catch (GeneralSecurityException | IOException e) {
+                    throw new RuntimeException("KeyStore load error", e);
+                } finally {
+                    FingerLockTrace.end();
+                    Metrics.phase(FingerLockMetricsListener.PHASE_KEY_STORE_LOAD, start);
+                }
+            }
+            return sKeyStore;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * {@hide}
+ * Key store used by the library to generate and keep the keys. The default one is the
+ * AndroidKeyStore, other implementations stand in for it where it's not available (JVM).
+ */
+@TargetApi(Build.VERSION_CODES.M)
+abstract class KeyStoreBackend {
+
+    static final String ANDROID_KEY_STORE = "AndroidKeyStore";
+
+    /**
+     * The AndroidKeyStore
+     */
+    static final KeyStoreBackend ANDROID = new KeyStoreBackend() {
+        @NonNull
+        @Override
+        KeyStore loadKeyStore() throws GeneralSecurityException, IOException {
+            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEY_STORE);
+            keyStore.load(null);
+            return keyStore;
+        }
+
+        @Override
+        void generateKey(@NonNull String keyName, @NonNull FingerLockKeySpec spec) throws GeneralSecurityException {
+            // Set the alias of the entry in Android KeyStore where the key will appear
+            // and the constrains (purposes) in the constructor of the Builder
+            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(keyName,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setKeySize(spec.getKeySize())
+                    .setBlockModes(spec.getBlockMode())
+                    // Require the user to authenticate with a fingerprint to authorize every use
+                    // of the key, or every use within the validity window for time-bound keys
+                    .setUserAuthenticationRequired(true)
+                    .setEncryptionPaddings(spec.getEncryptionPadding());
+            if (spec.isTimeBound()) {
+                builder.setUserAuthenticationValidityDurationSeconds(spec.getUserAuthenticationValidityDurationSeconds());
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                builder.setInvalidatedByBiometricEnrollment(spec.isInvalidatedByBiometricEnrollment())
+                        .setUserAuthenticationValidWhileOnBody(spec.isUserAuthenticationValidWhileOnBody());
+            }
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, ANDROID_KEY_STORE);
+            keyGenerator.init(builder.build());
+            keyGenerator.generateKey();
+        }
+
+        @NonNull
+        @Override
+        Cipher newCipher(@NonNull String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+            return Cipher.getInstance(transformation);
+        }
+    };
+
+    /**
+     * Returns a new loaded key store
+     */
+    @NonNull
+    abstract KeyStore loadKeyStore() throws GeneralSecurityException, IOException;
+
+    /**
+     * Generates (or replaces) the key of the given name
+     *
+     * @throws GeneralSecurityException when the key cannot be generated
+     * @throws IllegalStateException    when there's no secure lock screen or no fingerprint enrolled
+     */
+    abstract void generateKey(@NonNull String keyName, @NonNull FingerLockKeySpec spec) throws GeneralSecurityException;
+
+    /**
+     * Returns a new, not initialized, cipher able to use the keys of this key store
+     */
+    @NonNull
+    abstract Cipher newCipher(@NonNull String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException;
+}
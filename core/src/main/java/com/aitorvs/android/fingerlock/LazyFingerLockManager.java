@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.app.AppCompatActivity;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@hide}
+ * Lightweight {@link FingerLockManager} returned by
+ * {@link FingerLock#initializeLazily(AppCompatActivity, String)}.
+ * <p>
+ * Nothing is done upon creation. The {@link FingerLock} fragment is attached, and thus the
+ * fingerprint system service resolved and the key created, on the first call to
+ * {@link #start()}, {@link #start(int, byte[])}, {@link #isFingerprintAuthSupported()} or
+ * {@link #isFingerprintRegistered()}. Configuration calls made before are buffered and applied
+ * then. Main thread only.
+ */
+final class LazyFingerLockManager implements FingerLockManager {
+
+    private static final String TAG = LazyFingerLockManager.class.getSimpleName();
+
+    private static final int NO_START = 0;
+    private static final int PLAIN_START = 1;
+    private static final int CIPHER_START = 2;
+
+    private final WeakReference<AppCompatActivity> mActivity;
+    private final String mKeyName;
+
+    // attached fragment, null until the first use
+    private FingerLock mDelegate;
+    private boolean mMaterializing;
+
+    // buffered configuration
+    private final List<FingerLockResultCallback> mPendingListeners = new ArrayList<>();
+    private Handler mCallbackHandler;
+    private boolean mCallbackHandlerSet;
+    private Boolean mRetainSession;
+
+    // start requested while attaching the fragment
+    private int mPendingStart = NO_START;
+    private int mPendingCipherMode;
+    private byte[] mPendingIv;
+
+    LazyFingerLockManager(@NonNull AppCompatActivity activity, @NonNull String keyName) {
+        mActivity = new WeakReference<>(activity);
+        mKeyName = keyName;
+    }
+
+    /**
+     * Attaches the fragment the first time
+     *
+     * @return attached fragment or <code>null</code> when the activity is gone
+     */
+    @Nullable
+    private FingerLock materialize() {
+        if (mDelegate != null || mMaterializing) {
+            return mDelegate;
+        }
+        AppCompatActivity activity = mActivity.get();
+        if (activity == null) {
+            return null;
+        }
+
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "materialize: " + mKeyName);
+        mMaterializing = true;
+        try {
+            FingerLock fragment = FingerLock.find(activity, mKeyName);
+            if (fragment == null) {
+                // configure before attaching, the fragment is resumed right away when the
+                // activity is and the callbacks may call us back
+                fragment = FingerLock.createInstance(activity, mKeyName);
+                configure(fragment);
+                FingerLock.attach(activity, fragment, mKeyName);
+            } else {
+                configure(fragment);
+            }
+            mDelegate = fragment;
+        } finally {
+            mMaterializing = false;
+        }
+        return mDelegate;
+    }
+
+    private void configure(@NonNull FingerLock fragment) {
+        // only what was explicitly set, an existing fragment keeps its configuration
+        if (mCallbackHandlerSet) {
+            fragment.setCallbackHandler(mCallbackHandler);
+        }
+        if (mRetainSession != null) {
+            fragment.setRetainSession(mRetainSession);
+        }
+        for (FingerLockResultCallback listener : mPendingListeners) {
+            fragment.addFingerLockListener(listener);
+        }
+        mPendingListeners.clear();
+    }
+
+    private void runPendingStart() {
+        int pending = mPendingStart;
+        mPendingStart = NO_START;
+        if (mDelegate == null || !mDelegate.isResumed()) {
+            // not resumed yet, onFingerLockReady() is delivered upon resume
+            return;
+        }
+        if (pending == PLAIN_START) {
+            mDelegate.start();
+        } else if (pending == CIPHER_START) {
+            byte[] iv = mPendingIv;
+            mPendingIv = null;
+            mDelegate.start(mPendingCipherMode, iv);
+        }
+    }
+
+    @Override
+    public boolean isFingerprintAuthSupported() {
+        FingerLock delegate = materialize();
+        return delegate != null && delegate.isFingerprintAuthSupported();
+    }
+
+    @Override
+    public boolean isFingerprintRegistered() {
+        FingerLock delegate = materialize();
+        return delegate != null && delegate.isFingerprintRegistered();
+    }
+
+    @Override
+    public void start() {
+        mPendingStart = PLAIN_START;
+        if (!mMaterializing) {
+            materialize();
+            runPendingStart();
+        }
+    }
+
+    @Override
+    public void start(int cipherMode, @Nullable byte[] iv) {
+        // fail in the caller, not when the pending start runs
+        FingerLockApi.checkCipherArguments(cipherMode, iv);
+        mPendingStart = CIPHER_START;
+        mPendingCipherMode = cipherMode;
+        mPendingIv = iv;
+        if (!mMaterializing) {
+            materialize();
+            runPendingStart();
+        }
+    }
+
+    @Override
+    public void stop() {
+        mPendingStart = NO_START;
+        if (mDelegate != null) {
+            mDelegate.stop();
+        }
+    }
+
+    @Override
+    public void recreateKey(FingerLockResultCallback listener) {
+        if (mDelegate != null) {
+            mDelegate.recreateKey(listener);
+        }
+    }
+
+    @Override
+    public void addFingerLockListener(@NonNull FingerLockResultCallback listener) {
+        if (mDelegate != null) {
+            mDelegate.addFingerLockListener(listener);
+        } else if (!mPendingListeners.contains(listener)) {
+            //noinspection ConstantConditions
+            if (listener != null) {
+                mPendingListeners.add(listener);
+            }
+        }
+    }
+
+    @Override
+    public void removeFingerLockListener(@NonNull FingerLockResultCallback listener) {
+        if (mDelegate != null) {
+            mDelegate.removeFingerLockListener(listener);
+        } else {
+            mPendingListeners.remove(listener);
+        }
+    }
+
+    @Override
+    public void setCallbackHandler(@Nullable Handler handler) {
+        mCallbackHandler = handler;
+        mCallbackHandlerSet = true;
+        if (mDelegate != null) {
+            mDelegate.setCallbackHandler(handler);
+        }
+    }
+
+    @Override
+    public void setRetainSession(boolean retain) {
+        mRetainSession = retain;
+        if (mDelegate != null) {
+            mDelegate.setRetainSession(retain);
+        }
+    }
+
+    @Nullable
+    @Override
+    public FingerLockSession getSession() {
+        return mDelegate != null ? mDelegate.getSession() : null;
+    }
+}
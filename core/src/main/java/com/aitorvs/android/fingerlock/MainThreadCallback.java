@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.support.annotation.NonNull;
+
+import javax.crypto.Cipher;
+
+/**
+ * Delivers the library events to the wrapped callback in the main thread.
+ * <p>
+ * Use it along with {@link FingerLockManager#setCallbackHandler(Handler)} to run the heavy
+ * post-authentication work in a background thread while the UI-facing callbacks still run in
+ * the main thread. Events raised in the main thread are delivered right away, otherwise they're
+ * posted as pooled {@link Message}s. Errors are copied, so the wrapped callback receives a valid
+ * {@link FingerLockError} even though the library reuses them.
+ * <p>
+ * The authorized {@link Cipher} is not copied: the wrapped callback receives the same instance
+ * as the listeners called in the handler thread. A {@link Cipher} is not thread-safe, only one
+ * of them may use it.
+ * <p>
+ * Call {@link #release()} once the wrapped callback goes away (e.g. the activity is detached),
+ * so that the events still queued don't reach it.
+ */
+public final class MainThreadCallback implements FingerLockResultCallback, FingerLockErrorCallback, FingerLockCipherCallback {
+
+    private static final int MSG_ERROR = 0;
+    private static final int MSG_EXCEPTION = 1;
+    private static final int MSG_SUCCEEDED = 2;
+    private static final int MSG_CIPHER_SUCCEEDED = 3;
+    private static final int MSG_READY = 4;
+    private static final int MSG_SCANNING = 5;
+
+    private final FingerLockResultCallback mCallback;
+    private final Handler mHandler;
+
+    // no event is delivered once released
+    private volatile boolean mReleased;
+
+    // only used in the main thread
+    private final FingerLockError mError = new FingerLockError(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR, null);
+
+    /**
+     * @param callback callback to be called in the main thread. It may also implement
+     *                 {@link FingerLockErrorCallback} and {@link FingerLockCipherCallback}
+     */
+    public MainThreadCallback(@NonNull FingerLockResultCallback callback) {
+        mCallback = callback;
+        mHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                deliver(msg.what, msg.arg1, msg.arg2, msg.obj);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns the wrapped callback
+     *
+     * @return callback called in the main thread
+     */
+    @NonNull
+    public FingerLockResultCallback getCallback() {
+        return mCallback;
+    }
+
+    /**
+     * Drops the events pending delivery and stops delivering the next ones. Call it from the main
+     * thread once the wrapped callback is no longer valid.
+     */
+    public void release() {
+        mReleased = true;
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public void onFingerLockError(@FingerLock.FingerLockErrorState int errorType, Exception e) {
+        if (e instanceof FingerLockError) {
+            onFingerLockError((FingerLockError) e);
+        } else {
+            post(MSG_EXCEPTION, errorType, 0, e);
+        }
+    }
+
+    @Override
+    public void onFingerLockError(@NonNull FingerLockError error) {
+        // the error may be reused by the library, copy the fields. The restart delay does not fit
+        // in the message, it's only boxed along with the description when a restart is scheduled
+        long restartDelay = error.getRestartDelayMillis();
+        Object description = restartDelay == FingerLockError.NO_RESTART
+                ? error.getDescription() : new RestartingError(error.getDescription(), restartDelay);
+        post(MSG_ERROR, error.getErrorType(), error.getSystemCode(), description);
+    }
+
+    @Override
+    public void onFingerLockAuthenticationSucceeded() {
+        post(MSG_SUCCEEDED, 0, 0, null);
+    }
+
+    /**
+     * Delivers the cipher as is. The wrapped callback must be its only user, see the class
+     * documentation.
+     */
+    @Override
+    public void onFingerLockAuthenticationSucceeded(@NonNull Cipher cipher) {
+        post(MSG_CIPHER_SUCCEEDED, 0, 0, cipher);
+    }
+
+    @Override
+    public void onFingerLockReady() {
+        post(MSG_READY, 0, 0, null);
+    }
+
+    @Override
+    public void onFingerLockScanning(boolean invalidKey) {
+        post(MSG_SCANNING, invalidKey ? 1 : 0, 0, null);
+    }
+
+    private void post(int what, int arg1, int arg2, Object obj) {
+        if (mReleased) {
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            deliver(what, arg1, arg2, obj);
+        } else {
+            mHandler.obtainMessage(what, arg1, arg2, obj).sendToTarget();
+        }
+    }
+
+    @SuppressWarnings("WrongConstant")
+    private void deliver(int what, int arg1, int arg2, Object obj) {
+        if (mReleased) {
+            // posted right before the release
+            return;
+        }
+        switch (what) {
+            case MSG_ERROR:
+                if (obj instanceof RestartingError) {
+                    RestartingError restarting = (RestartingError) obj;
+                    mError.set(arg1, arg2, restarting.description).setRestartDelay(restarting.restartDelayMillis);
+                } else {
+                    mError.set(arg1, arg2, (CharSequence) obj);
+                }
+                FingerLockError.dispatch(mCallback, mError);
+                break;
+            case MSG_EXCEPTION:
+                mCallback.onFingerLockError(arg1, (Exception) obj);
+                break;
+            case MSG_SUCCEEDED:
+                mCallback.onFingerLockAuthenticationSucceeded();
+                break;
+            case MSG_CIPHER_SUCCEEDED:
+                if (mCallback instanceof FingerLockCipherCallback) {
+                    ((FingerLockCipherCallback) mCallback).onFingerLockAuthenticationSucceeded((Cipher) obj);
+                } else {
+                    mCallback.onFingerLockAuthenticationSucceeded();
+                }
+                break;
+            case MSG_READY:
+                mCallback.onFingerLockReady();
+                break;
+            case MSG_SCANNING:
+                mCallback.onFingerLockScanning(arg1 != 0);
+                break;
+        }
+    }
+
+    /**
+     * Error description along with the delay of the scheduled restart
+     */
+    private static final class RestartingError {
+        final CharSequence description;
+        final long restartDelayMillis;
+
+        RestartingError(CharSequence description, long restartDelayMillis) {
+            this.description = description;
+            this.restartDelayMillis = restartDelayMillis;
+        }
+    }
+}
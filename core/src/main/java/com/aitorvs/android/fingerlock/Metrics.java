@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.Nullable;
+
+/**
+ * {@hide}
+ * Forwards the library measurements to the {@link FingerLockMetricsListener}, if any. With no
+ * listener set the measurements cost a volatile read.
+ */
+final class Metrics {
+
+    private static volatile FingerLockMetricsListener sListener;
+
+    private Metrics() {
+    }
+
+    static void setListener(@Nullable FingerLockMetricsListener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Returns the start time of a phase
+     *
+     * @return start time in nanoseconds, <code>0</code> when there's no listener
+     */
+    static long start() {
+        return sListener != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Reports the end of a phase
+     *
+     * @param phase      phase
+     * @param startNanos start time as returned by {@link #start()}
+     */
+    static void phase(@FingerLockMetricsListener.Phase int phase, long startNanos) {
+        FingerLockMetricsListener listener = sListener;
+        if (listener != null && startNanos != 0) {
+            listener.onPhase(phase, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Reports an error
+     *
+     * @param errorType error type
+     */
+    static void error(@FingerLock.FingerLockErrorState int errorType) {
+        FingerLockMetricsListener listener = sListener;
+        if (listener != null) {
+            listener.onError(errorType);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * {@hide}
+ * Re-arms the sensor of one registration after an error, following the
+ * {@link FingerLockRestartPolicy} in place. Restarts are one-shot delayed tasks in the main
+ * thread: after a lockout the sensor is started when the lockout expires, after transient errors
+ * with an exponential backoff. Sensor events are reported from the callback thread, restarts are
+ * cancelled from the main thread.
+ */
+final class RestartScheduler {
+
+    private static final String TAG = RestartScheduler.class.getSimpleName();
+
+    // FingerprintManager.FINGERPRINT_ERROR_LOCKOUT_PERMANENT, API 26. Only the device
+    // credential ends it
+    private static final int FINGERPRINT_ERROR_LOCKOUT_PERMANENT = 9;
+
+    private static volatile FingerLockRestartPolicy sPolicy;
+
+    // there's only one sensor, the lockout is process-wide. Elapsed realtime at which the known
+    // lockout expires
+    private static final Object sLockoutLock = new Object();
+    private static long sLockoutDeadline;
+    private static boolean sLockoutKnown;
+
+    private final Runnable mRestart;
+
+    // not recognized in a row since the last success or lockout
+    private int mConsecutiveFailures;
+    // restarts in a row after transient errors
+    private int mRestarts;
+    // scheduled restart, if any
+    private Runnable mPending;
+
+    /**
+     * @param restart starts the sensor again, run in the main thread
+     */
+    RestartScheduler(@NonNull Runnable restart) {
+        mRestart = restart;
+    }
+
+    static void setPolicy(@Nullable FingerLockRestartPolicy policy) {
+        sPolicy = policy;
+    }
+
+    /**
+     * Fingerprint not recognized, the sensor keeps scanning
+     */
+    synchronized void onFailed() {
+        mConsecutiveFailures++;
+        mRestarts = 0;
+    }
+
+    /**
+     * Help event, the sensor keeps scanning
+     */
+    synchronized void onHelp() {
+        mRestarts = 0;
+    }
+
+    synchronized void onSucceeded() {
+        mConsecutiveFailures = 0;
+        mRestarts = 0;
+    }
+
+    /**
+     * The session ended with the given system error. Schedules the restart when the policy
+     * allows it.
+     *
+     * @param errorCode system error code
+     * @return delay of the scheduled restart in milliseconds or
+     * {@link FingerLockError#NO_RESTART}
+     */
+    long onError(int errorCode) {
+        FingerLockRestartPolicy policy = sPolicy;
+        if (policy == null) {
+            return FingerLockError.NO_RESTART;
+        }
+        long delay;
+        Runnable task;
+        synchronized (this) {
+            switch (errorCode) {
+                case FingerprintManager.FINGERPRINT_ERROR_LOCKOUT:
+                    delay = lockoutDelay(policy, mConsecutiveFailures > 0);
+                    mConsecutiveFailures = 0;
+                    break;
+                case FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE:
+                case FingerprintManager.FINGERPRINT_ERROR_UNABLE_TO_PROCESS:
+                case FingerprintManager.FINGERPRINT_ERROR_TIMEOUT:
+                    if (mRestarts >= policy.getMaxRestarts()) {
+                        // give up, the error ends the session
+                        return FingerLockError.NO_RESTART;
+                    }
+                    delay = policy.backoffMillis(mRestarts++);
+                    break;
+                case FINGERPRINT_ERROR_LOCKOUT_PERMANENT:
+                default:
+                    return FingerLockError.NO_RESTART;
+            }
+            task = newTask();
+        }
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "onError: " + errorCode + ", restart in " + delay + " ms");
+        KeyExecutor.postToMainDelayed(task, delay);
+        return delay;
+    }
+
+    /**
+     * Cancels the scheduled restart, if any
+     */
+    void cancel() {
+        Runnable task;
+        synchronized (this) {
+            task = mPending;
+            mPending = null;
+        }
+        if (task != null) {
+            KeyExecutor.removeFromMain(task);
+        }
+    }
+
+    private Runnable newTask() {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RestartScheduler.this) {
+                    if (mPending != this) {
+                        // cancelled or superseded
+                        return;
+                    }
+                    mPending = null;
+                }
+                mRestart.run();
+            }
+        };
+        mPending = task;
+        return task;
+    }
+
+    /**
+     * Returns the time left until the lockout expires
+     *
+     * @param started <code>true</code> when the lockout was caused by the failures just counted
+     */
+    private static long lockoutDelay(@NonNull FingerLockRestartPolicy policy, boolean started) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sLockoutLock) {
+            if (started || !sLockoutKnown || sLockoutDeadline - now <= 0) {
+                // a new lockout, or one that began before we were scanning: the whole duration
+                // is the upper bound
+                sLockoutDeadline = now + policy.getLockoutDurationMillis();
+                sLockoutKnown = true;
+            }
+            return sLockoutDeadline - now;
+        }
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+
+/**
+ * Store of encrypted secrets (tokens, certificates...) keyed by alias, backed by a single
+ * memory-mapped file.
+ * <p>
+ * Secrets are encrypted with a {@link Cipher} initialized with a FingerLock key, e.g. the one
+ * delivered through {@link FingerLockCipherCallback}. Every entry keeps its own initialization
+ * vector, get it with {@link #getIv(String)} to start the decryption.
+ * <p>
+ * The file is an append-only log of records. Opening the vault walks the records to verify their
+ * checksums and build a compact in-memory index (alias to file offset), the encrypted payloads
+ * are only decrypted when requested. Writing or removing an entry appends a record without
+ * rewriting the file; call {@link #compact()} from time to time to drop the stale records.
+ * Upon opening, the records from the first one that is incomplete or corrupt (e.g. cut short by
+ * an interrupted write) on are dropped.
+ * <p>
+ * All the methods do file I/O, call them from a background thread.
+ */
+@WorkerThread
+public final class SecretVault {
+
+    private static final String TAG = SecretVault.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // 'F' 'L' 'V' '1'
+    private static final int MAGIC = 0x464c5631;
+    private static final int HEADER_SIZE = 4;
+
+    // record layout: length (int), alias length (short), alias, iv length (byte), iv,
+    // data length (int, -1 for removed entries), data, CRC32 of the record after the length (int)
+    private static final int REMOVED = -1;
+    private static final int CHECKSUM_SIZE = 4;
+    // the mapped records are checksummed through a heap buffer
+    private static final int CHECKSUM_CHUNK_SIZE = 4096;
+
+    // the file is mapped at once, the mapped region grows by doubling
+    private static final long MIN_CAPACITY = 4096;
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    // compaction writes here, then renames it over the vault file
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private final Map<String, Entry> mIndex = new HashMap<>();
+    private MappedByteBuffer mMap;
+    // end of the valid records
+    private long mSize;
+    // mapped length. The file is grown ahead of the records, the zeros past the records are
+    // dropped when the vault is closed or opened again
+    private long mCapacity;
+    private boolean mClosed;
+
+    /**
+     * Index entry
+     */
+    private static final class Entry {
+        // offset of the record in the file, pointing at the record length
+        final long recordOffset;
+        // offset of the iv and data within the file
+        final long ivOffset;
+        final int ivLength;
+        final long dataOffset;
+        final int dataLength;
+
+        Entry(long recordOffset, long ivOffset, int ivLength, long dataOffset, int dataLength) {
+            this.recordOffset = recordOffset;
+            this.ivOffset = ivOffset;
+            this.ivLength = ivLength;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+
+        int recordLength() {
+            // length field and checksum included
+            return (int) (dataOffset + dataLength + CHECKSUM_SIZE - recordOffset);
+        }
+    }
+
+    private SecretVault(@NonNull File file) throws IOException {
+        mFile = file;
+        // left over by a compaction that did not complete, the vault file is still the good one
+        //noinspection ResultOfMethodCallIgnored
+        compactionFile(file).delete();
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+    }
+
+    /**
+     * Opens the vault stored in the given file, creating it when it does not exist
+     *
+     * @param file vault file
+     * @return opened vault
+     * @throws IOException when the file cannot be opened or it is not a vault file
+     */
+    @NonNull
+    public static SecretVault open(@NonNull File file) throws IOException {
+        SecretVault vault = new SecretVault(file);
+        try {
+            vault.load();
+        } catch (IOException | RuntimeException e) {
+            vault.close();
+            throw e;
+        }
+        return vault;
+    }
+
+    private void load() throws IOException {
+        mSize = mChannel.size();
+        if (mSize == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).flip();
+            writeFully(header, 0);
+            mSize = HEADER_SIZE;
+        }
+        if (mSize > MAX_SIZE) {
+            throw new IOException("Vault file too large: " + mFile);
+        }
+        mCapacity = mSize;
+        remap();
+
+        if (mSize < HEADER_SIZE || mMap.getInt(0) != MAGIC) {
+            throw new IOException("Not a vault file: " + mFile);
+        }
+
+        long offset = HEADER_SIZE;
+        byte[] scratch = new byte[CHECKSUM_CHUNK_SIZE];
+        while (offset + 4 <= mSize) {
+            int recordLength = mMap.getInt((int) offset);
+            if (recordLength <= CHECKSUM_SIZE || offset + 4 + recordLength > mSize) {
+                // truncated record, likely an interrupted write. Ignore the tail
+                break;
+            }
+            // the file is grown ahead of the records, the payload of an interrupted write may
+            // read as zeros within the file
+            int end = (int) offset + 4 + recordLength;
+            if (checksum(mMap, (int) offset + 4, end - CHECKSUM_SIZE, scratch) != mMap.getInt(end - CHECKSUM_SIZE)
+                    || !indexRecord(mMap, (int) offset, offset)) {
+                // corrupt record, nothing after it can be trusted
+                if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "load: corrupt record at " + offset);
+                break;
+            }
+            offset = end;
+        }
+        if (offset != mSize) {
+            // drop the invalid tail so that new records are appended after valid data
+            mChannel.truncate(offset);
+            mSize = offset;
+            mCapacity = offset;
+            remap();
+        }
+    }
+
+    /**
+     * Indexes the record at the given position of the buffer, laying at the given file offset
+     *
+     * @return <code>false</code> when the record is corrupt and was not indexed
+     */
+    private boolean indexRecord(ByteBuffer buffer, int position, long recordOffset) {
+        int end = position + 4 + buffer.getInt(position);
+        int pos = position + 4;
+        if (pos + 2 > end) {
+            return false;
+        }
+        int aliasLength = buffer.getShort(pos) & 0xffff;
+        pos += 2;
+        if (aliasLength == 0 || pos + aliasLength + 1 > end) {
+            return false;
+        }
+        byte[] aliasBytes = new byte[aliasLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(pos);
+        view.get(aliasBytes);
+        pos += aliasLength;
+        int ivLength = buffer.get(pos) & 0xff;
+        pos += 1;
+        int ivPosition = pos;
+        pos += ivLength;
+        if (pos + 4 > end) {
+            return false;
+        }
+        int dataLength = buffer.getInt(pos);
+        pos += 4;
+        if (dataLength == REMOVED
+                ? pos + CHECKSUM_SIZE != end
+                : dataLength < 0 || pos + dataLength + CHECKSUM_SIZE != end) {
+            return false;
+        }
+
+        String alias = new String(aliasBytes, UTF_8);
+        if (dataLength == REMOVED) {
+            mIndex.remove(alias);
+        } else {
+            long delta = recordOffset - position;
+            mIndex.put(alias, new Entry(recordOffset, ivPosition + delta, ivLength, pos + delta, dataLength));
+        }
+        return true;
+    }
+
+    private static int checksum(ByteBuffer buffer, int from, int to, byte[] scratch) {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = buffer.duplicate();
+        view.position(from);
+        while (view.position() < to) {
+            int length = Math.min(scratch.length, to - view.position());
+            view.get(scratch, 0, length);
+            crc.update(scratch, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Completes the record built in the heap buffer, its position right after the data: appends
+     * the checksum, sets the record length and flips it
+     */
+    private static void seal(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), record.arrayOffset() + 4, record.position() - 4);
+        record.putInt((int) crc.getValue());
+        record.putInt(0, record.position() - 4);
+        record.flip();
+    }
+
+    private void remap() throws IOException {
+        mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mCapacity);
+    }
+
+    /**
+     * Grows the file and the mapped region so that they hold the given size, doubling the
+     * capacity so that appending does not remap the file every time
+     */
+    private void ensureCapacity(long size) throws IOException {
+        if (size > MAX_SIZE) {
+            throw new IOException("Vault file too large, compact it: " + mFile);
+        }
+        if (size <= mCapacity) {
+            return;
+        }
+        long capacity = Math.max(MIN_CAPACITY, mCapacity);
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        mCapacity = Math.min(capacity, MAX_SIZE);
+        mRandomAccessFile.setLength(mCapacity);
+        remap();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        writeFully(mChannel, buffer, position);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void checkOpen() throws IllegalStateException {
+        if (mClosed) {
+            throw new IllegalStateException("SecretVault closed");
+        }
+    }
+
+    private static File compactionFile(File file) {
+        return new File(file.getPath() + COMPACT_SUFFIX);
+    }
+
+    /**
+     * Returns <code>true</code> when there's an entry for the given alias
+     *
+     * @param alias entry alias
+     * @return <code>true</code> when found
+     */
+    public synchronized boolean contains(@NonNull String alias) {
+        checkOpen();
+        return mIndex.containsKey(alias);
+    }
+
+    /**
+     * Returns the aliases of all the entries in the vault
+     *
+     * @return unmodifiable set of aliases
+     */
+    @NonNull
+    public synchronized Set<String> aliases() {
+        checkOpen();
+        return Collections.unmodifiableSet(new HashSet<>(mIndex.keySet()));
+    }
+
+    /**
+     * Returns the initialization vector of the given entry. Use it to initialize the decryption
+     * cipher, e.g. through {@link FingerLockManager#start(int, byte[])}.
+     *
+     * @param alias entry alias
+     * @return initialization vector or <code>null</code> when the entry does not exist
+     */
+    @Nullable
+    public synchronized byte[] getIv(@NonNull String alias) {
+        checkOpen();
+        Entry entry = mIndex.get(alias);
+        if (entry == null) {
+            return null;
+        }
+        byte[] iv = new byte[entry.ivLength];
+        slice(entry.ivOffset, entry.ivLength).get(iv);
+        return iv;
+    }
+
+    /**
+     * Encrypts the secret and stores it under the given alias, replacing any previous entry
+     *
+     * @param alias  entry alias
+     * @param cipher cipher initialized in {@link Cipher#ENCRYPT_MODE}
+     * @param secret secret to store
+     * @throws IOException              when the vault cannot be written
+     * @throws GeneralSecurityException when the encryption fails
+     */
+    public void put(@NonNull String alias, @NonNull Cipher cipher, @NonNull byte[] secret)
+            throws IOException, GeneralSecurityException {
+        put(alias, cipher, ByteBuffer.wrap(secret));
+    }
+
+    /**
+     * Encrypts the remaining bytes of the buffer and stores them under the given alias, replacing
+     * any previous entry. The ciphertext is written straight into the record buffer.
+     *
+     * @param alias  entry alias
+     * @param cipher cipher initialized in {@link Cipher#ENCRYPT_MODE}
+     * @param secret secret to store
+     * @throws IOException              when the vault cannot be written
+     * @throws GeneralSecurityException when the encryption fails
+     */
+    public synchronized void put(@NonNull String alias, @NonNull Cipher cipher, @NonNull ByteBuffer secret)
+            throws IOException, GeneralSecurityException {
+        checkOpen();
+        byte[] aliasBytes = aliasBytes(alias);
+        byte[] iv = cipher.getIV();
+        int ivLength = iv != null ? iv.length : 0;
+        if (ivLength > 0xff) {
+            throw new IllegalArgumentException("Initialization vector too long");
+        }
+
+        int maxDataLength = cipher.getOutputSize(secret.remaining());
+        ByteBuffer record = ByteBuffer.allocate(4 + 2 + aliasBytes.length + 1 + ivLength + 4 + maxDataLength + CHECKSUM_SIZE);
+        record.position(4);
+        record.putShort((short) aliasBytes.length).put(aliasBytes);
+        record.put((byte) ivLength);
+        if (iv != null) {
+            record.put(iv);
+        }
+        int dataLengthPos = record.position();
+        record.position(dataLengthPos + 4);
+        int dataLength = CipherStreams.transform(cipher, secret, record);
+        record.putInt(dataLengthPos, dataLength);
+        seal(record);
+
+        append(record);
+    }
+
+    /**
+     * Removes the entry with the given alias
+     *
+     * @param alias entry alias
+     * @return <code>true</code> when the entry existed
+     * @throws IOException when the vault cannot be written
+     */
+    public synchronized boolean remove(@NonNull String alias) throws IOException {
+        checkOpen();
+        if (!mIndex.containsKey(alias)) {
+            return false;
+        }
+        byte[] aliasBytes = aliasBytes(alias);
+        ByteBuffer record = ByteBuffer.allocate(4 + 2 + aliasBytes.length + 1 + 4 + CHECKSUM_SIZE);
+        record.position(4);
+        record.putShort((short) aliasBytes.length).put(aliasBytes);
+        record.put((byte) 0);
+        record.putInt(REMOVED);
+        seal(record);
+
+        append(record);
+        return true;
+    }
+
+    /**
+     * Decrypts the entry with the given alias
+     *
+     * @param alias  entry alias
+     * @param cipher cipher initialized in {@link Cipher#DECRYPT_MODE} with the entry
+     *               {@linkplain #getIv(String) initialization vector}
+     * @return the secret or <code>null</code> when the entry does not exist
+     * @throws GeneralSecurityException when the decryption fails
+     */
+    @Nullable
+    public synchronized byte[] get(@NonNull String alias, @NonNull Cipher cipher) throws GeneralSecurityException {
+        checkOpen();
+        Entry entry = mIndex.get(alias);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(entry.dataLength));
+        CipherStreams.transform(cipher, slice(entry.dataOffset, entry.dataLength), output);
+        byte[] secret = new byte[output.position()];
+        output.flip();
+        output.get(secret);
+        return secret;
+    }
+
+    /**
+     * Decrypts the entry with the given alias into the given buffer, straight from the mapped
+     * file
+     *
+     * @param alias  entry alias
+     * @param cipher cipher initialized in {@link Cipher#DECRYPT_MODE} with the entry
+     *               {@linkplain #getIv(String) initialization vector}
+     * @param output output buffer
+     * @return number of bytes written into the output buffer or <code>-1</code> when the entry
+     * does not exist
+     * @throws GeneralSecurityException when the decryption fails
+     */
+    public synchronized int get(@NonNull String alias, @NonNull Cipher cipher, @NonNull ByteBuffer output)
+            throws GeneralSecurityException {
+        checkOpen();
+        Entry entry = mIndex.get(alias);
+        if (entry == null) {
+            return -1;
+        }
+        return CipherStreams.transform(cipher, slice(entry.dataOffset, entry.dataLength), output);
+    }
+
+    /**
+     * Rewrites the vault file keeping only the live entries. Payloads are copied as they are,
+     * no decryption is needed.
+     *
+     * @throws IOException when the vault cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        // the live records are copied to a new file, which replaces the vault file once it is
+        // complete and synced. A crash at any point leaves either file intact
+        File compactionFile = compactionFile(mFile);
+        long offset = HEADER_SIZE;
+        Map<String, Entry> compacted = new HashMap<>();
+        RandomAccessFile out = new RandomAccessFile(compactionFile, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).flip();
+            writeFully(channel, header, 0);
+            for (Map.Entry<String, Entry> item : mIndex.entrySet()) {
+                Entry entry = item.getValue();
+                int recordLength = entry.recordLength();
+                // file to file, the payloads are not copied to the heap
+                long copied = 0;
+                while (copied < recordLength) {
+                    copied += mChannel.transferTo(entry.recordOffset + copied, recordLength - copied,
+                            channel.position(offset + copied));
+                }
+                long delta = offset - entry.recordOffset;
+                compacted.put(item.getKey(), new Entry(offset, entry.ivOffset + delta, entry.ivLength,
+                        entry.dataOffset + delta, entry.dataLength));
+                offset += recordLength;
+            }
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            //noinspection ResultOfMethodCallIgnored
+            compactionFile.delete();
+            throw e;
+        }
+        out.close();
+
+        if (!compactionFile.renameTo(mFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            compactionFile.delete();
+            throw new IOException("Cannot replace the vault file: " + mFile);
+        }
+
+        // switch to the new file
+        mMap = null;
+        mRandomAccessFile.close();
+        try {
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            mChannel = mRandomAccessFile.getChannel();
+            mSize = offset;
+            mCapacity = offset;
+            remap();
+        } catch (IOException | RuntimeException e) {
+            // the vault file is fine, open it again
+            mClosed = true;
+            mIndex.clear();
+            throw e;
+        }
+        mIndex.clear();
+        mIndex.putAll(compacted);
+    }
+
+    /**
+     * Closes the vault. It can no longer be used afterwards, the calls throw
+     * {@link IllegalStateException}.
+     *
+     * @throws IOException when the file cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mIndex.clear();
+        mMap = null;
+        try {
+            if (mCapacity > mSize) {
+                // drop the room reserved for new records
+                mChannel.truncate(mSize);
+            }
+        } finally {
+            mRandomAccessFile.close();
+        }
+    }
+
+    private void append(ByteBuffer record) throws IOException {
+        long offset = mSize;
+        ensureCapacity(offset + record.limit());
+        writeFully(record, offset);
+        mChannel.force(false);
+        mSize = offset + record.limit();
+
+        // the in-memory record is indexed, no need to read it back from the file
+        indexRecord(record, 0, offset);
+    }
+
+    private ByteBuffer slice(long offset, int length) {
+        ByteBuffer view = mMap.duplicate();
+        view.limit((int) offset + length);
+        view.position((int) offset);
+        return view;
+    }
+
+    private static byte[] aliasBytes(String alias) {
+        byte[] aliasBytes = alias.getBytes(UTF_8);
+        if (aliasBytes.length == 0 || aliasBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Invalid alias length");
+        }
+        return aliasBytes;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStore;
+import java.security.KeyStoreSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+/**
+ * {@hide}
+ * In-process stand-in for the AndroidKeyStore, see {@link FingerLockSimulator}.
+ * <p>
+ * It's a JCA provider of its own, never registered in {@link java.security.Security}, offering
+ * the "AndroidKeyStore" key store and the AES ciphers. As in the AndroidKeyStore, keys are not
+ * exportable and ciphers can only be initialized with the keys of this key store. Invalidated
+ * keys make the cipher initialization throw {@link KeyPermanentlyInvalidatedException}.
+ */
+final class SimulatedKeyStore extends KeyStoreBackend {
+
+    private static final String PROVIDER_NAME = "FingerLockSimulator";
+    private static final String ALGORITHM = "AES";
+
+    // keys by alias
+    private final Map<String, SimulatedKey> mKeys = new ConcurrentHashMap<>();
+    private final Provider mProvider = new SimulatedProvider();
+
+    @NonNull
+    @Override
+    KeyStore loadKeyStore() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(ANDROID_KEY_STORE, mProvider);
+        keyStore.load(null);
+        return keyStore;
+    }
+
+    @Override
+    void generateKey(@NonNull String keyName, @NonNull FingerLockKeySpec spec) throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(ALGORITHM);
+        keyGenerator.init(spec.getKeySize());
+        mKeys.put(keyName, new SimulatedKey(keyGenerator.generateKey(), spec.getBlockMode(), spec.getEncryptionPadding()));
+    }
+
+    @NonNull
+    @Override
+    Cipher newCipher(@NonNull String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return Cipher.getInstance(transformation, mProvider);
+    }
+
+    /**
+     * Permanently invalidates the existing keys, as the system does when a new fingerprint is
+     * enrolled or the secure lock screen is disabled. New keys are not affected.
+     */
+    void invalidateKeys() {
+        for (SimulatedKey key : mKeys.values()) {
+            key.invalidated = true;
+        }
+    }
+
+    /**
+     * Deletes all the keys
+     */
+    void deleteKeys() {
+        mKeys.clear();
+    }
+
+    /**
+     * Key of the simulated key store. Like the AndroidKeyStore keys, the key material is not
+     * exposed
+     */
+    private static final class SimulatedKey implements SecretKey {
+        final SecretKey material;
+        // the only block mode and padding the key can be used with
+        final String blockMode;
+        final String encryptionPadding;
+        volatile boolean invalidated;
+
+        SimulatedKey(SecretKey material, String blockMode, String encryptionPadding) {
+            this.material = material;
+            this.blockMode = blockMode;
+            this.encryptionPadding = encryptionPadding;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return material.getAlgorithm();
+        }
+
+        @Override
+        public String getFormat() {
+            // not exportable
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            // not exportable
+            return null;
+        }
+    }
+
+    private final class SimulatedProvider extends Provider {
+
+        SimulatedProvider() {
+            super(PROVIDER_NAME, 1.0, "FingerLock simulated AndroidKeyStore");
+            putService(new Service(this, "KeyStore", ANDROID_KEY_STORE, SimulatedKeyStoreSpi.class.getName(), null, null) {
+                @Override
+                public Object newInstance(Object constructorParameter) {
+                    return new SimulatedKeyStoreSpi();
+                }
+            });
+            putService(new Service(this, "Cipher", ALGORITHM, SimulatedCipherSpi.class.getName(), null, null) {
+                @Override
+                public Object newInstance(Object constructorParameter) {
+                    return new SimulatedCipherSpi();
+                }
+            });
+        }
+    }
+
+    private final class SimulatedKeyStoreSpi extends KeyStoreSpi {
+
+        @Override
+        public java.security.Key engineGetKey(String alias, char[] password) {
+            return mKeys.get(alias);
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            return null;
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            return null;
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            return null;
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, java.security.Key key, char[] password, Certificate[] chain) {
+            // keys are only created through the key generation
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) {
+            mKeys.remove(alias);
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            return Collections.enumeration(mKeys.keySet());
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            return mKeys.containsKey(alias);
+        }
+
+        @Override
+        public int engineSize() {
+            return mKeys.size();
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            return mKeys.containsKey(alias);
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            return false;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            return null;
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) {
+            // in memory only
+        }
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) {
+            // in memory only
+        }
+    }
+
+    /**
+     * AES cipher on top of the platform one, only accepting the simulated keys
+     */
+    private static final class SimulatedCipherSpi extends CipherSpi {
+
+        private String mMode = "ECB";
+        // padding as named by the AndroidKeyStore and by the JVM
+        private String mKeyStorePadding = "PKCS7Padding";
+        private String mPadding = "PKCS5Padding";
+        private Cipher mDelegate;
+
+        private Cipher delegate() {
+            if (mDelegate == null) {
+                try {
+                    mDelegate = Cipher.getInstance(ALGORITHM + "/" + mMode + "/" + mPadding);
+                } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                    throw new IllegalStateException("Unsupported transformation", e);
+                }
+            }
+            return mDelegate;
+        }
+
+        private SecretKey material(java.security.Key key) throws InvalidKeyException {
+            if (!(key instanceof SimulatedKey)) {
+                throw new InvalidKeyException("Only keys of the simulated AndroidKeyStore are supported");
+            }
+            SimulatedKey simulatedKey = (SimulatedKey) key;
+            if (simulatedKey.invalidated) {
+                throw new KeyPermanentlyInvalidatedException();
+            }
+            // as the AndroidKeyStore, keys are bound to the block mode and padding they were
+            // generated for
+            if (!simulatedKey.blockMode.equalsIgnoreCase(mMode)) {
+                throw new InvalidKeyException("Incompatible block mode");
+            }
+            if (!simulatedKey.encryptionPadding.equalsIgnoreCase(mKeyStorePadding)) {
+                throw new InvalidKeyException("Incompatible padding");
+            }
+            return simulatedKey.material;
+        }
+
+        @Override
+        protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+            mMode = mode;
+            mDelegate = null;
+        }
+
+        @Override
+        protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+            // the JVM names PKCS5Padding what the AndroidKeyStore names PKCS7Padding for AES
+            mKeyStorePadding = padding;
+            mPadding = "PKCS7Padding".equalsIgnoreCase(padding) ? "PKCS5Padding" : padding;
+            mDelegate = null;
+        }
+
+        @Override
+        protected int engineGetBlockSize() {
+            return delegate().getBlockSize();
+        }
+
+        @Override
+        protected int engineGetOutputSize(int inputLen) {
+            return delegate().getOutputSize(inputLen);
+        }
+
+        @Override
+        protected byte[] engineGetIV() {
+            return delegate().getIV();
+        }
+
+        @Override
+        protected AlgorithmParameters engineGetParameters() {
+            return delegate().getParameters();
+        }
+
+        @Override
+        protected void engineInit(int opmode, java.security.Key key, SecureRandom random) throws InvalidKeyException {
+            SecretKey material = material(key);
+            if (opmode == Cipher.DECRYPT_MODE) {
+                // as the AndroidKeyStore
+                throw new InvalidKeyException("IV required when decrypting. Use IvParameterSpec or AlgorithmParameters to provide it.");
+            }
+            delegate().init(opmode, material, random);
+        }
+
+        @Override
+        protected void engineInit(int opmode, java.security.Key key, AlgorithmParameterSpec params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            SecretKey material = material(key);
+            checkCallerIv(opmode, params != null);
+            delegate().init(opmode, material, params, random);
+        }
+
+        @Override
+        protected void engineInit(int opmode, java.security.Key key, AlgorithmParameters params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            SecretKey material = material(key);
+            checkCallerIv(opmode, params != null);
+            delegate().init(opmode, material, params, random);
+        }
+
+        private static void checkCallerIv(int opmode, boolean callerIv) throws InvalidAlgorithmParameterException {
+            // keys require randomized encryption, the key store generates the IV
+            if (opmode == Cipher.ENCRYPT_MODE && callerIv) {
+                throw new InvalidAlgorithmParameterException("Caller-provided IV not permitted");
+            }
+        }
+
+        @Override
+        protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+            return delegate().update(input, inputOffset, inputLen);
+        }
+
+        @Override
+        protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+                throws ShortBufferException {
+            return delegate().update(input, inputOffset, inputLen, output, outputOffset);
+        }
+
+        @Override
+        protected void engineUpdateAAD(byte[] src, int offset, int len) {
+            delegate().updateAAD(src, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+                throws IllegalBlockSizeException, BadPaddingException {
+            return delegate().doFinal(input, inputOffset, inputLen);
+        }
+
+        @Override
+        protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+                throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+            return delegate().doFinal(input, inputOffset, inputLen, output, outputOffset);
+        }
+    }
+}
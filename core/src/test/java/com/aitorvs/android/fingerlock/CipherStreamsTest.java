@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips through the {@link CipherStreams} stream and buffer paths, using plain JVM ciphers
+ */
+public class CipherStreamsTest {
+
+    private static final int CHUNK_SIZE = 64;
+    // around the chunk boundaries, with the default chunk size too
+    private static final int[] SIZES = {0, 1, 15, 16, 17, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1,
+            3 * CHUNK_SIZE + 5, CipherStreams.DEFAULT_CHUNK_SIZE, CipherStreams.DEFAULT_CHUNK_SIZE + 1, 100000};
+    private static final String[] TRANSFORMATIONS = {"AES/CBC/PKCS5Padding", "AES/CTR/NoPadding", "AES/GCM/NoPadding"};
+
+    private final SecretKey mKey = new SecretKeySpec(new byte[16], "AES");
+    private final SecureRandom mRandom = new SecureRandom();
+
+    @Test
+    public void streamRoundTrip() throws Exception {
+        for (String transformation : TRANSFORMATIONS) {
+            for (int size : SIZES) {
+                byte[] plain = payload(size);
+                AlgorithmParameterSpec params = params(transformation);
+
+                ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+                OutputStream out = CipherStreams.newOutputStream(cipher(transformation, Cipher.ENCRYPT_MODE, params),
+                        encrypted, CHUNK_SIZE);
+                writeUnevenly(out, plain);
+                out.close();
+
+                InputStream in = CipherStreams.newInputStream(cipher(transformation, Cipher.DECRYPT_MODE, params),
+                        new ByteArrayInputStream(encrypted.toByteArray()), CHUNK_SIZE);
+                assertArrayEquals(plain, readUnevenly(in));
+                in.close();
+            }
+        }
+    }
+
+    @Test
+    public void transformStreams() throws Exception {
+        for (String transformation : TRANSFORMATIONS) {
+            for (int size : SIZES) {
+                byte[] plain = payload(size);
+                AlgorithmParameterSpec params = params(transformation);
+
+                ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+                long written = CipherStreams.transform(cipher(transformation, Cipher.ENCRYPT_MODE, params),
+                        new ByteArrayInputStream(plain), encrypted);
+                assertEquals(encrypted.size(), written);
+
+                ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+                written = CipherStreams.transform(cipher(transformation, Cipher.DECRYPT_MODE, params),
+                        new ByteArrayInputStream(encrypted.toByteArray()), decrypted);
+                assertEquals(plain.length, written);
+                assertArrayEquals(plain, decrypted.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void byteBufferRoundTrip() throws Exception {
+        for (String transformation : TRANSFORMATIONS) {
+            for (int size : SIZES) {
+                for (boolean direct : new boolean[]{false, true}) {
+                    byte[] plain = payload(size);
+                    AlgorithmParameterSpec params = params(transformation);
+
+                    Cipher encryptor = cipher(transformation, Cipher.ENCRYPT_MODE, params);
+                    ByteBuffer input = allocate(size, direct);
+                    input.put(plain).flip();
+                    ByteBuffer encrypted = allocate(encryptor.getOutputSize(size), direct);
+                    int written = CipherStreams.transform(encryptor, input, encrypted);
+                    assertEquals(input.limit(), input.position());
+                    assertEquals(written, encrypted.position());
+                    encrypted.flip();
+
+                    Cipher decryptor = cipher(transformation, Cipher.DECRYPT_MODE, params);
+                    ByteBuffer decrypted = allocate(decryptor.getOutputSize(encrypted.remaining()), direct);
+                    written = CipherStreams.transform(decryptor, encrypted, decrypted);
+                    assertEquals(size, written);
+                    decrypted.flip();
+                    byte[] result = new byte[decrypted.remaining()];
+                    decrypted.get(result);
+                    assertArrayEquals(plain, result);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tamperedGcmStreamFails() throws Exception {
+        byte[] plain = payload(3 * CHUNK_SIZE + 5);
+        AlgorithmParameterSpec params = params("AES/GCM/NoPadding");
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        CipherStreams.transform(cipher("AES/GCM/NoPadding", Cipher.ENCRYPT_MODE, params),
+                new ByteArrayInputStream(plain), encrypted);
+        byte[] tampered = encrypted.toByteArray();
+        tampered[10] ^= 1;
+
+        InputStream in = CipherStreams.newInputStream(cipher("AES/GCM/NoPadding", Cipher.DECRYPT_MODE, params),
+                new ByteArrayInputStream(tampered), CHUNK_SIZE);
+        try {
+            readUnevenly(in);
+            fail("tag not verified");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void shortOutputBufferIsRejected() throws Exception {
+        Cipher cipher = cipher("AES/CBC/PKCS5Padding", Cipher.ENCRYPT_MODE, params("AES/CBC/PKCS5Padding"));
+        ByteBuffer input = ByteBuffer.wrap(payload(100));
+        try {
+            CipherStreams.transform(cipher, input, ByteBuffer.allocate(100));
+            fail("output buffer too small");
+        } catch (ShortBufferException expected) {
+        }
+        // nothing consumed
+        assertEquals(0, input.position());
+    }
+
+    @Test
+    public void invalidChunkSizeIsRejected() throws Exception {
+        Cipher cipher = cipher("AES/CTR/NoPadding", Cipher.ENCRYPT_MODE, params("AES/CTR/NoPadding"));
+        try {
+            CipherStreams.newOutputStream(cipher, new ByteArrayOutputStream(), 0);
+            fail("chunk size 0");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            CipherStreams.newInputStream(cipher, new ByteArrayInputStream(new byte[0]), -1);
+            fail("chunk size -1");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        mRandom.nextBytes(payload);
+        return payload;
+    }
+
+    private AlgorithmParameterSpec params(String transformation) {
+        if (transformation.contains("GCM")) {
+            byte[] iv = new byte[12];
+            mRandom.nextBytes(iv);
+            return new GCMParameterSpec(128, iv);
+        }
+        byte[] iv = new byte[16];
+        mRandom.nextBytes(iv);
+        return new IvParameterSpec(iv);
+    }
+
+    private Cipher cipher(String transformation, int mode, AlgorithmParameterSpec params) throws Exception {
+        Cipher cipher = Cipher.getInstance(transformation);
+        cipher.init(mode, mKey, params);
+        return cipher;
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Writes single bytes and slices of varying length, crossing the chunk boundaries
+     */
+    private static void writeUnevenly(OutputStream out, byte[] data) throws IOException {
+        Random random = new Random(data.length);
+        int offset = 0;
+        while (offset < data.length) {
+            if (random.nextInt(4) == 0) {
+                out.write(data[offset++]);
+            } else {
+                int length = Math.min(data.length - offset, 1 + random.nextInt(3 * CHUNK_SIZE));
+                out.write(data, offset, length);
+                offset += length;
+            }
+        }
+    }
+
+    private static byte[] readUnevenly(InputStream in) throws IOException {
+        Random random = new Random();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3 * CHUNK_SIZE];
+        while (true) {
+            if (random.nextInt(4) == 0) {
+                int b = in.read();
+                if (b == -1) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                int n = in.read(buffer, 0, 1 + random.nextInt(buffer.length));
+                if (n == -1) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
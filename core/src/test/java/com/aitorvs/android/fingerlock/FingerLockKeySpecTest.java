@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.security.keystore.KeyProperties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Key generation and cipher setup following the {@link FingerLockKeySpec}, on top of the
+ * simulated key store
+ */
+public class FingerLockKeySpecTest {
+
+    private static final String KEY_NAME = "spec";
+    private static final byte[] PLAIN_TEXT = "The quick brown fox jumps over the lazy dog".getBytes(Charset.forName("UTF-8"));
+
+    private static final FingerLockKeySpec GCM = new FingerLockKeySpec.Builder()
+            .setBlockMode(KeyProperties.BLOCK_MODE_GCM)
+            .setKeySize(256)
+            .build();
+
+    @Before
+    public void setUp() throws Exception {
+        KeyRegistry.setBackend(new SimulatedKeyStore());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        KeyRegistry.configure(KEY_NAME, FingerLockKeySpec.DEFAULT);
+        KeyRegistry.setBackend(KeyStoreBackend.ANDROID);
+    }
+
+    @Test
+    public void transformationFollowsTheSpec() throws Exception {
+        assertEquals("AES/CBC/PKCS7Padding", FingerLockKeySpec.DEFAULT.getTransformation());
+        assertEquals("AES/GCM/NoPadding", GCM.getTransformation());
+        assertTrue(GCM.isAuthenticatedEncryption());
+        assertFalse(FingerLockKeySpec.DEFAULT.isAuthenticatedEncryption());
+
+        try {
+            new FingerLockKeySpec.Builder()
+                    .setBlockMode(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPadding(KeyProperties.ENCRYPTION_PADDING_PKCS7)
+                    .build();
+            fail("PKCS7 padding accepted with GCM");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void authenticatedEncryptionRoundTrip() throws Exception {
+        KeyRegistry.configure(KEY_NAME, GCM);
+        Key key = KeyRegistry.obtain(KEY_NAME);
+        assertTrue(key.recreateKey());
+        key = KeyRegistry.obtain(KEY_NAME);
+
+        Cipher encrypt = key.newCipher(Cipher.ENCRYPT_MODE, null);
+        byte[] cipherText = encrypt.doFinal(PLAIN_TEXT);
+        // the tag is appended to the cipher text, no separate MAC
+        assertEquals(PLAIN_TEXT.length + FingerLockKeySpec.GCM_TAG_LENGTH / 8, cipherText.length);
+
+        byte[] iv = encrypt.getIV();
+        assertArrayEquals(PLAIN_TEXT, key.newCipher(Cipher.DECRYPT_MODE, iv).doFinal(cipherText));
+
+        cipherText[0] ^= 1;
+        try {
+            key.newCipher(Cipher.DECRYPT_MODE, iv).doFinal(cipherText);
+            fail("tampered cipher text decrypted");
+        } catch (AEADBadTagException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void changedBlockModeInvalidatesTheKey() throws Exception {
+        Key key = KeyRegistry.obtain(KEY_NAME);
+        assertTrue(key.recreateKey());
+        assertTrue(KeyRegistry.obtain(KEY_NAME).isKeyValid());
+
+        // the existing CBC key can't be used with GCM ciphers until it is recreated
+        KeyRegistry.configure(KEY_NAME, GCM);
+        key = KeyRegistry.obtain(KEY_NAME);
+        assertFalse(key.isKeyValid());
+
+        assertTrue(KeyRegistry.obtain(KEY_NAME).recreateKey());
+        assertTrue(KeyRegistry.obtain(KEY_NAME).isKeyValid());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.content.ContextWrapper;
+import android.hardware.fingerprint.FingerprintManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Histograms of the {@link FingerLockMetrics} and the phases measured along an authentication
+ * on top of the {@link FingerLockSimulator}
+ */
+public class FingerLockMetricsTest {
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private FingerLockMetrics mMetrics;
+
+    @Before
+    public void setUp() {
+        mMetrics = new FingerLockMetrics();
+    }
+
+    @After
+    public void tearDown() {
+        FingerLock.setMetricsListener(null);
+        FingerLockSimulator.uninstall();
+    }
+
+    @Test
+    public void bucketsArePowersOfTwoMicros() {
+        assertEquals(0, FingerLockMetrics.bucketOf(999));
+        assertEquals(1, FingerLockMetrics.bucketOf(1000));
+        assertEquals(2, FingerLockMetrics.bucketOf(2000));
+        assertEquals(2, FingerLockMetrics.bucketOf(3999));
+        assertEquals(10, FingerLockMetrics.bucketOf(TimeUnit.MILLISECONDS.toNanos(1)));
+        assertEquals(FingerLockMetrics.BUCKET_COUNT - 1, FingerLockMetrics.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAndCounters() {
+        for (int i = 0; i < 99; i++) {
+            mMetrics.onPhase(FingerLockMetricsListener.PHASE_KEY_VALIDATION, TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        mMetrics.onPhase(FingerLockMetricsListener.PHASE_KEY_VALIDATION, TimeUnit.MILLISECONDS.toNanos(10));
+        mMetrics.onError(FingerLock.FINGERPRINT_NOT_RECOGNIZED);
+        mMetrics.onError(FingerLock.FINGERPRINT_NOT_RECOGNIZED);
+
+        FingerLockMetrics.Snapshot snapshot = mMetrics.snapshot();
+        assertEquals(100, snapshot.getCount(FingerLockMetricsListener.PHASE_KEY_VALIDATION));
+        assertEquals(128, snapshot.getPercentileMicros(FingerLockMetricsListener.PHASE_KEY_VALIDATION, 0.5));
+        assertEquals(128, snapshot.getPercentileMicros(FingerLockMetricsListener.PHASE_KEY_VALIDATION, 0.99));
+        assertEquals(16384, snapshot.getPercentileMicros(FingerLockMetricsListener.PHASE_KEY_VALIDATION, 1.0));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), snapshot.getMaxNanos(FingerLockMetricsListener.PHASE_KEY_VALIDATION));
+        assertEquals(0, snapshot.getCount(FingerLockMetricsListener.PHASE_SCAN_TO_SUCCESS));
+        assertEquals(2, snapshot.getErrorCount(FingerLock.FINGERPRINT_NOT_RECOGNIZED));
+
+        // the snapshot is a copy
+        mMetrics.reset();
+        assertEquals(100, snapshot.getCount(FingerLockMetricsListener.PHASE_KEY_VALIDATION));
+        assertSame(snapshot, mMetrics.snapshot(snapshot));
+        assertEquals(0, snapshot.getCount(FingerLockMetricsListener.PHASE_KEY_VALIDATION));
+        assertEquals(0, snapshot.getErrorCount(FingerLock.FINGERPRINT_NOT_RECOGNIZED));
+    }
+
+    @Test
+    public void authenticationPhases() throws Exception {
+        FingerLock.setMetricsListener(mMetrics);
+        FingerLockSimulator simulator = new FingerLockSimulator.Builder()
+                .setMainExecutor(DIRECT)
+                .build()
+                .install();
+        KeyExecutor.setExecutors(DIRECT, DIRECT);
+
+        final CountDownLatch succeeded = new CountDownLatch(1);
+        FingerLockEngine engine = new FingerLockEngine(new ContextWrapper(null), "metrics");
+        engine.addFingerLockListener(new FingerLockResultCallback() {
+            @Override
+            public void onFingerLockError(@FingerLock.FingerLockErrorState int errorType, Exception e) {
+            }
+
+            @Override
+            public void onFingerLockAuthenticationSucceeded() {
+                succeeded.countDown();
+            }
+
+            @Override
+            public void onFingerLockReady() {
+            }
+
+            @Override
+            public void onFingerLockScanning(boolean invalidKey) {
+            }
+        });
+        engine.open();
+        simulator.enqueue(FingerLockSimulator.Touch.help(FingerprintManager.FINGERPRINT_ACQUIRED_PARTIAL, "Partial"), 3)
+                .enqueue(FingerLockSimulator.Touch.success());
+        engine.start();
+        assertTrue(succeeded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        engine.close();
+
+        FingerLockMetrics.Snapshot snapshot = mMetrics.snapshot();
+        // the key is created on the first start
+        assertEquals(1, snapshot.getCount(FingerLockMetricsListener.PHASE_KEY_STORE_LOAD));
+        assertEquals(1, snapshot.getCount(FingerLockMetricsListener.PHASE_KEY_GENERATION));
+        assertEquals(2, snapshot.getCount(FingerLockMetricsListener.PHASE_KEY_VALIDATION));
+        // no cipher handed out on a plain start
+        assertEquals(0, snapshot.getCount(FingerLockMetricsListener.PHASE_CIPHER_INIT));
+        assertEquals(1, snapshot.getCount(FingerLockMetricsListener.PHASE_FIRST_SENSOR_EVENT));
+        assertEquals(1, snapshot.getCount(FingerLockMetricsListener.PHASE_SCAN_TO_SUCCESS));
+        assertEquals(3, snapshot.getErrorCount(FingerLock.FINGERPRINT_ERROR_HELP));
+        assertEquals(0, snapshot.getErrorCount(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR));
+    }
+}
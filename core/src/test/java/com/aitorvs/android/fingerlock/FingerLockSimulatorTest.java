@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.content.ContextWrapper;
+import android.hardware.fingerprint.FingerprintManager;
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Authentication cycles on the plain JVM, running the {@link FingerLockEngine} on top of the
+ * {@link FingerLockSimulator}
+ */
+public class FingerLockSimulatorTest {
+
+    private static final String KEY_NAME = "simulator";
+    private static final int CYCLES = 2000;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    // stands for the main thread
+    private ExecutorService mMain;
+    private FingerLockSimulator mSimulator;
+    private FingerLockEngine mEngine;
+    private Recorder mRecorder;
+
+    /**
+     * Records the events, all of them delivered in the main thread
+     */
+    private static class Recorder implements FingerLockResultCallback {
+        volatile CountDownLatch latch = new CountDownLatch(1);
+        int ready;
+        int scanning;
+        int invalidKey;
+        int succeeded;
+        int notRecognized;
+        int help;
+        int errors;
+        long restartDelay = FingerLockError.NO_RESTART;
+
+        void expect(int events) {
+            latch = new CountDownLatch(events);
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("timed out", latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public void onFingerLockError(@FingerLock.FingerLockErrorState int errorType, Exception e) {
+            if (errorType == FingerLock.FINGERPRINT_NOT_RECOGNIZED) {
+                notRecognized++;
+            } else if (errorType == FingerLock.FINGERPRINT_ERROR_HELP) {
+                help++;
+            } else {
+                errors++;
+                restartDelay = ((FingerLockError) e).getRestartDelayMillis();
+            }
+            latch.countDown();
+        }
+
+        @Override
+        public void onFingerLockAuthenticationSucceeded() {
+            succeeded++;
+            latch.countDown();
+        }
+
+        @Override
+        public void onFingerLockReady() {
+            ready++;
+            latch.countDown();
+        }
+
+        @Override
+        public void onFingerLockScanning(boolean invalidKey) {
+            scanning++;
+            if (invalidKey) {
+                this.invalidKey++;
+            }
+            latch.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mMain = Executors.newSingleThreadExecutor();
+        mRecorder = new Recorder();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.close();
+                return null;
+            }
+        });
+        FingerLock.setRestartPolicy(null);
+        FingerLockSimulator.uninstall();
+        mMain.shutdownNow();
+    }
+
+    private void open(FingerLockSimulator.Builder builder, final FingerLockResultCallback callback) throws Exception {
+        mSimulator = builder.setMainExecutor(mMain).build().install();
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine = new FingerLockEngine(new ContextWrapper(null), KEY_NAME);
+                mEngine.addFingerLockListener(callback);
+                mEngine.open();
+                return null;
+            }
+        });
+    }
+
+    private void start() throws Exception {
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.start();
+                return null;
+            }
+        });
+    }
+
+    private void start(final int cipherMode, final byte[] iv) throws Exception {
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.start(cipherMode, iv);
+                return null;
+            }
+        });
+    }
+
+    private void assertRejected(int cipherMode, byte[] iv) throws Exception {
+        try {
+            start(cipherMode, iv);
+            fail("start(" + cipherMode + ", " + Arrays.toString(iv) + ") accepted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    private <T> T onMain(Callable<T> task) throws Exception {
+        return mMain.submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void thousandsOfAuthenticationCycles() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        mRecorder = new Recorder() {
+            @Override
+            public void onFingerLockReady() {
+                super.onFingerLockReady();
+                mEngine.start();
+            }
+
+            @Override
+            public void onFingerLockAuthenticationSucceeded() {
+                super.onFingerLockAuthenticationSucceeded();
+                if (succeeded < CYCLES) {
+                    mEngine.start();
+                } else {
+                    done.countDown();
+                }
+            }
+        };
+        open(new FingerLockSimulator.Builder().setDefaultTouch(FingerLockSimulator.Touch.success()), mRecorder);
+
+        assertTrue("timed out", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(CYCLES, mRecorder.succeeded);
+        assertEquals(CYCLES, mSimulator.getAuthenticationCount());
+        assertEquals(0, mRecorder.errors);
+    }
+
+    @Test
+    public void helpBurstThenSuccess() throws Exception {
+        open(new FingerLockSimulator.Builder().setLatency(1), mRecorder);
+        mRecorder.await();
+
+        mRecorder.expect(1 + 5 + 1);
+        mSimulator.enqueue(FingerLockSimulator.Touch.help(FingerprintManager.FINGERPRINT_ACQUIRED_PARTIAL, "Partial"), 5)
+                .enqueue(FingerLockSimulator.Touch.success());
+        start();
+        mRecorder.await();
+
+        assertEquals(1, mRecorder.scanning);
+        assertEquals(5, mRecorder.help);
+        assertEquals(1, mRecorder.succeeded);
+        assertFalse(mSimulator.isAuthenticating());
+    }
+
+    @Test
+    public void lockoutAfterTooManyFailures() throws Exception {
+        open(new FingerLockSimulator.Builder().setMaxFailedAttempts(3), mRecorder);
+        mRecorder.await();
+
+        // scanning, 2 not recognized and the lockout error
+        mRecorder.expect(1 + 3);
+        mSimulator.enqueue(FingerLockSimulator.Touch.failure(), 3);
+        start();
+        mRecorder.await();
+        assertEquals(2, mRecorder.notRecognized);
+        assertEquals(1, mRecorder.errors);
+
+        // still locked out
+        mRecorder.expect(1 + 1);
+        mSimulator.enqueue(FingerLockSimulator.Touch.success());
+        start();
+        mRecorder.await();
+        assertEquals(2, mRecorder.errors);
+        assertEquals(0, mRecorder.succeeded);
+
+        mRecorder.expect(1 + 1);
+        mSimulator.resetLockout();
+        start();
+        mRecorder.await();
+        assertEquals(1, mRecorder.succeeded);
+    }
+
+    @Test
+    public void restartWhenLockoutExpires() throws Exception {
+        FingerLock.setRestartPolicy(new FingerLockRestartPolicy.Builder().setLockoutDuration(100).build());
+        open(new FingerLockSimulator.Builder().setMaxFailedAttempts(2).setLockoutDuration(100), mRecorder);
+        mRecorder.await();
+
+        // scanning, not recognized, lockout error, scanning again once the lockout expires and
+        // success
+        mRecorder.expect(1 + 2 + 1 + 1);
+        mSimulator.enqueue(FingerLockSimulator.Touch.failure(), 2)
+                .enqueue(FingerLockSimulator.Touch.success());
+        start();
+        mRecorder.await();
+
+        assertEquals(1, mRecorder.errors);
+        assertEquals(100, mRecorder.restartDelay);
+        assertEquals(2, mRecorder.scanning);
+        assertEquals(1, mRecorder.succeeded);
+        assertEquals(2, mSimulator.getAuthenticationCount());
+    }
+
+    @Test
+    public void restartAfterTransientErrors() throws Exception {
+        FingerLock.setRestartPolicy(new FingerLockRestartPolicy.Builder()
+                .setBackoff(10, 15)
+                .setMaxRestarts(2)
+                .build());
+        open(new FingerLockSimulator.Builder(), mRecorder);
+        mRecorder.await();
+
+        // two restarts with backoff, then the error ends the session
+        mRecorder.expect(3 * 2);
+        mSimulator.enqueue(FingerLockSimulator.Touch.error(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, "Unavailable"), 3)
+                .enqueue(FingerLockSimulator.Touch.success());
+        start();
+        mRecorder.await();
+        assertEquals(3, mRecorder.errors);
+        assertEquals(FingerLockError.NO_RESTART, mRecorder.restartDelay);
+
+        Thread.sleep(50);
+        assertEquals(3, mSimulator.getAuthenticationCount());
+        assertEquals(0, mRecorder.succeeded);
+        assertFalse(mSimulator.isAuthenticating());
+    }
+
+    @Test
+    public void stopCancelsRestart() throws Exception {
+        FingerLock.setRestartPolicy(new FingerLockRestartPolicy.Builder().setBackoff(20, 20).build());
+        mRecorder = new Recorder() {
+            @Override
+            public void onFingerLockError(@FingerLock.FingerLockErrorState int errorType, Exception e) {
+                mEngine.stop();
+                super.onFingerLockError(errorType, e);
+            }
+        };
+        open(new FingerLockSimulator.Builder(), mRecorder);
+        mRecorder.await();
+
+        mRecorder.expect(1 + 1);
+        mSimulator.enqueue(FingerLockSimulator.Touch.error(FingerprintManager.FINGERPRINT_ERROR_TIMEOUT, "Timeout"))
+                .enqueue(FingerLockSimulator.Touch.success());
+        start();
+        mRecorder.await();
+        assertEquals(20, mRecorder.restartDelay);
+
+        Thread.sleep(100);
+        assertEquals(1, mSimulator.getAuthenticationCount());
+        assertEquals(1, mRecorder.scanning);
+    }
+
+    @Test
+    public void invalidCipherArgumentsAreRejected() throws Exception {
+        open(new FingerLockSimulator.Builder(), mRecorder);
+        mRecorder.await();
+
+        assertRejected(Cipher.WRAP_MODE, null);
+        // randomized encryption, the key store generates the IV
+        assertRejected(Cipher.ENCRYPT_MODE, new byte[16]);
+        assertRejected(Cipher.DECRYPT_MODE, null);
+        assertEquals(0, mSimulator.getAuthenticationCount());
+    }
+
+    @Test
+    public void cipherInitFailureIsReported() throws Exception {
+        open(new FingerLockSimulator.Builder(), mRecorder);
+        mRecorder.await();
+
+        // AES IVs are 16 bytes long
+        mRecorder.expect(1);
+        start(Cipher.DECRYPT_MODE, new byte[3]);
+        mRecorder.await();
+        assertEquals(1, mRecorder.errors);
+        assertEquals(0, mRecorder.invalidKey);
+        assertEquals(0, mSimulator.getAuthenticationCount());
+
+        // the key is still good
+        mRecorder.expect(1);
+        start(Cipher.ENCRYPT_MODE, null);
+        mRecorder.await();
+        assertEquals(1, mRecorder.scanning);
+        assertEquals(0, mRecorder.invalidKey);
+    }
+
+    @Test
+    public void cipherStartReplacesPlainScan() throws Exception {
+        final Cipher[] authorized = new Cipher[1];
+        mRecorder = new CipherRecorder(authorized);
+        open(new FingerLockSimulator.Builder(), mRecorder);
+        mRecorder.await();
+
+        mRecorder.expect(1);
+        start();
+        mRecorder.await();
+        assertEquals(1, mRecorder.scanning);
+
+        // the crypto session replaces the plain one
+        mRecorder.expect(1);
+        start(Cipher.ENCRYPT_MODE, null);
+        mRecorder.await();
+        assertEquals(2, mRecorder.scanning);
+        assertEquals(2, mSimulator.getAuthenticationCount());
+
+        mRecorder.expect(1);
+        mSimulator.enqueue(FingerLockSimulator.Touch.success());
+        mRecorder.await();
+        assertEquals(0, mRecorder.succeeded);
+        assertNotNull(authorized[0]);
+        assertNotNull(authorized[0].getIV());
+    }
+
+    /**
+     * Records the authorized cipher too
+     */
+    private static class CipherRecorder extends Recorder implements FingerLockCipherCallback {
+        private final Cipher[] mAuthorized;
+
+        CipherRecorder(Cipher[] authorized) {
+            mAuthorized = authorized;
+        }
+
+        @Override
+        public void onFingerLockAuthenticationSucceeded(@NonNull Cipher cipher) {
+            mAuthorized[0] = cipher;
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void invalidatedKey() throws Exception {
+        open(new FingerLockSimulator.Builder(), mRecorder);
+        mRecorder.await();
+
+        mRecorder.expect(1);
+        start();
+        mRecorder.await();
+        assertEquals(0, mRecorder.invalidKey);
+
+        // a new fingerprint enrolled meanwhile
+        mSimulator.invalidateKeys();
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.stop();
+                return null;
+            }
+        });
+        mRecorder.expect(1);
+        start();
+        mRecorder.await();
+        assertEquals(1, mRecorder.invalidKey);
+    }
+
+    @Test
+    public void noHardware() throws Exception {
+        open(new FingerLockSimulator.Builder().setHardwareDetected(false), mRecorder);
+        mRecorder.await();
+
+        assertEquals(0, mRecorder.ready);
+        assertEquals(1, mRecorder.errors);
+        assertFalse(mEngine.isFingerprintAuthSupported());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Events relayed by the {@link MainThreadCallback}. There's no main looper on the JVM, so the
+ * events are delivered right away, through the same path as the posted ones.
+ */
+public class MainThreadCallbackTest {
+
+    /**
+     * Copies the last error, the library reuses them
+     */
+    private static class ErrorRecorder implements FingerLockResultCallback, FingerLockErrorCallback {
+        int errors;
+        int errorType;
+        int systemCode;
+        CharSequence description;
+        long restartDelay;
+
+        @Override
+        public void onFingerLockError(@NonNull FingerLockError error) {
+            errors++;
+            errorType = error.getErrorType();
+            systemCode = error.getSystemCode();
+            description = error.getDescription();
+            restartDelay = error.getRestartDelayMillis();
+        }
+
+        @Override
+        public void onFingerLockError(@FingerLock.FingerLockErrorState int errorType, Exception e) {
+            onFingerLockError((FingerLockError) e);
+        }
+
+        @Override
+        public void onFingerLockAuthenticationSucceeded() {
+        }
+
+        @Override
+        public void onFingerLockReady() {
+        }
+
+        @Override
+        public void onFingerLockScanning(boolean invalidKey) {
+        }
+    }
+
+    @Test
+    public void restartDelayIsRelayed() {
+        ErrorRecorder recorder = new ErrorRecorder();
+        MainThreadCallback callback = new MainThreadCallback(recorder);
+
+        FingerLockError error = new FingerLockError(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR, 7, "Locked out");
+        callback.onFingerLockError(error.setRestartDelay(30000));
+        assertEquals(1, recorder.errors);
+        assertEquals(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR, recorder.errorType);
+        assertEquals(7, recorder.systemCode);
+        assertEquals("Locked out", recorder.description);
+        assertEquals(30000, recorder.restartDelay);
+
+        // the relayed error is reused, no restart this time
+        callback.onFingerLockError(error.set(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR, 5, "Canceled"));
+        assertEquals(2, recorder.errors);
+        assertEquals("Canceled", recorder.description);
+        assertEquals(FingerLockError.NO_RESTART, recorder.restartDelay);
+    }
+
+    @Test
+    public void releasedCallbackDropsEvents() {
+        ErrorRecorder recorder = new ErrorRecorder();
+        MainThreadCallback callback = new MainThreadCallback(recorder);
+        callback.release();
+
+        callback.onFingerLockError(new FingerLockError(FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR, 7, "Locked out"));
+        assertEquals(0, recorder.errors);
+    }
+}
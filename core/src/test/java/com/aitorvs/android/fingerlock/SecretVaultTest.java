@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * File format, recovery and compaction of the {@link SecretVault}, using a plain JVM cipher
+ */
+public class SecretVaultTest {
+
+    private static final byte[] SECRET = "The quick brown fox jumps over the lazy dog".getBytes(Charset.forName("UTF-8"));
+    private static final byte[] OTHER_SECRET = "pack my box with five dozen liquor jugs".getBytes(Charset.forName("UTF-8"));
+
+    private final SecretKey mKey = new SecretKeySpec(new byte[16], "AES");
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("vault", ".bin");
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(mFile.getPath() + ".compact").delete();
+    }
+
+    @Test
+    public void entriesSurviveReopen() throws Exception {
+        SecretVault vault = SecretVault.open(mFile);
+        vault.put("first", encryptor(), SECRET);
+        vault.put("second", encryptor(), OTHER_SECRET);
+        vault.put("first", encryptor(), OTHER_SECRET);
+        assertTrue(vault.remove("second"));
+        assertFalse(vault.remove("missing"));
+        assertArrayEquals(OTHER_SECRET, vault.get("first", decryptor(vault, "first")));
+        vault.close();
+
+        // the room reserved for new records is not left behind
+        long length = mFile.length();
+        vault = SecretVault.open(mFile);
+        assertEquals(length, mFile.length());
+        assertEquals(1, vault.aliases().size());
+        assertFalse(vault.contains("second"));
+        assertNull(vault.getIv("second"));
+        assertArrayEquals(OTHER_SECRET, vault.get("first", decryptor(vault, "first")));
+        vault.close();
+    }
+
+    @Test
+    public void manyEntries() throws Exception {
+        SecretVault vault = SecretVault.open(mFile);
+        for (int i = 0; i < 500; i++) {
+            vault.put("alias" + i, encryptor(), SECRET);
+        }
+        for (int i = 0; i < 500; i += 50) {
+            assertArrayEquals(SECRET, vault.get("alias" + i, decryptor(vault, "alias" + i)));
+        }
+        vault.close();
+
+        vault = SecretVault.open(mFile);
+        assertEquals(500, vault.aliases().size());
+        assertArrayEquals(SECRET, vault.get("alias499", decryptor(vault, "alias499")));
+        vault.close();
+    }
+
+    @Test
+    public void truncatedTailIsDropped() throws Exception {
+        SecretVault vault = SecretVault.open(mFile);
+        vault.put("first", encryptor(), SECRET);
+        vault.put("second", encryptor(), OTHER_SECRET);
+        vault.close();
+
+        // interrupted write of the last record
+        long length = mFile.length();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(length - 5);
+        file.close();
+
+        vault = SecretVault.open(mFile);
+        assertTrue(vault.contains("first"));
+        assertFalse(vault.contains("second"));
+        assertArrayEquals(SECRET, vault.get("first", decryptor(vault, "first")));
+
+        // new records go after the valid ones
+        vault.put("second", encryptor(), SECRET);
+        vault.close();
+        vault = SecretVault.open(mFile);
+        assertArrayEquals(SECRET, vault.get("second", decryptor(vault, "second")));
+        vault.close();
+    }
+
+    @Test
+    public void corruptRecordDropsTheTail() throws Exception {
+        SecretVault vault = SecretVault.open(mFile);
+        vault.put("first", encryptor(), SECRET);
+        vault.put("second", encryptor(), OTHER_SECRET);
+        vault.close();
+
+        // flip a payload byte of the second record
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(4);
+        long firstEnd = 4 + 4 + file.readInt();
+        file.seek(file.length() - 10);
+        int b = file.read();
+        file.seek(file.length() - 10);
+        file.write(b ^ 1);
+        file.close();
+
+        vault = SecretVault.open(mFile);
+        assertArrayEquals(SECRET, vault.get("first", decryptor(vault, "first")));
+        assertFalse(vault.contains("second"));
+        assertEquals(firstEnd, mFile.length());
+        vault.close();
+    }
+
+    @Test
+    public void tornAppendKeepsThePreviousValue() throws Exception {
+        SecretVault vault = SecretVault.open(mFile);
+        vault.put("first", encryptor(), SECRET);
+        vault.close();
+        long length = mFile.length();
+
+        // the header fields of a new value made it to disk, the payload and checksum did not and
+        // read as the zeros of the grown file
+        byte[] alias = "first".getBytes(Charset.forName("UTF-8"));
+        int dataLength = 48;
+        int recordLength = 2 + alias.length + 1 + 16 + 4 + dataLength + 4;
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(length);
+        file.writeInt(recordLength);
+        file.writeShort(alias.length);
+        file.write(alias);
+        file.write(16);
+        file.write(new byte[16]);
+        file.writeInt(dataLength);
+        file.setLength(length + 4096);
+        file.close();
+
+        vault = SecretVault.open(mFile);
+        assertArrayEquals(SECRET, vault.get("first", decryptor(vault, "first")));
+        assertEquals(length, mFile.length());
+
+        // new records go after the valid ones
+        vault.put("first", encryptor(), OTHER_SECRET);
+        vault.close();
+        vault = SecretVault.open(mFile);
+        assertArrayEquals(OTHER_SECRET, vault.get("first", decryptor(vault, "first")));
+        vault.close();
+    }
+
+    @Test
+    public void compactDropsStaleRecords() throws Exception {
+        SecretVault vault = SecretVault.open(mFile);
+        for (int i = 0; i < 20; i++) {
+            vault.put("first", encryptor(), SECRET);
+            vault.put("removed" + i, encryptor(), OTHER_SECRET);
+            vault.remove("removed" + i);
+        }
+        vault.put("second", encryptor(), OTHER_SECRET);
+        vault.close();
+        long length = mFile.length();
+
+        vault = SecretVault.open(mFile);
+        vault.compact();
+        assertTrue(mFile.length() < length);
+        assertFalse(new File(mFile.getPath() + ".compact").exists());
+        assertArrayEquals(SECRET, vault.get("first", decryptor(vault, "first")));
+        assertArrayEquals(OTHER_SECRET, vault.get("second", decryptor(vault, "second")));
+
+        // still usable after the compaction
+        vault.put("third", encryptor(), SECRET);
+        vault.close();
+
+        vault = SecretVault.open(mFile);
+        assertEquals(3, vault.aliases().size());
+        assertArrayEquals(SECRET, vault.get("first", decryptor(vault, "first")));
+        assertArrayEquals(OTHER_SECRET, vault.get("second", decryptor(vault, "second")));
+        assertArrayEquals(SECRET, vault.get("third", decryptor(vault, "third")));
+        vault.close();
+    }
+
+    @Test
+    public void staleCompactionFileIsIgnored() throws Exception {
+        SecretVault vault = SecretVault.open(mFile);
+        vault.put("first", encryptor(), SECRET);
+        vault.close();
+
+        // crash in the middle of a compaction
+        File compactionFile = new File(mFile.getPath() + ".compact");
+        RandomAccessFile file = new RandomAccessFile(compactionFile, "rw");
+        file.writeInt(0x464c5631);
+        file.close();
+
+        vault = SecretVault.open(mFile);
+        assertFalse(compactionFile.exists());
+        assertArrayEquals(SECRET, vault.get("first", decryptor(vault, "first")));
+        vault.close();
+    }
+
+    @Test
+    public void closedVaultThrows() throws Exception {
+        SecretVault vault = SecretVault.open(mFile);
+        vault.put("first", encryptor(), SECRET);
+        vault.close();
+        // closing twice is fine
+        vault.close();
+
+        try {
+            vault.get("first", encryptor());
+            fail("get on a closed vault");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            vault.put("first", encryptor(), SECRET);
+            fail("put on a closed vault");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            vault.compact();
+            fail("compact on a closed vault");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void byteBufferRoundTrip() throws Exception {
+        SecretVault vault = SecretVault.open(mFile);
+        ByteBuffer secret = ByteBuffer.allocateDirect(SECRET.length);
+        secret.put(SECRET).flip();
+        vault.put("first", encryptor(), secret);
+
+        ByteBuffer out = ByteBuffer.allocate(SECRET.length + 16);
+        vault.get("first", decryptor(vault, "first"), out);
+        out.flip();
+        byte[] plain = new byte[out.remaining()];
+        out.get(plain);
+        assertArrayEquals(SECRET, plain);
+        vault.close();
+    }
+
+    private Cipher encryptor() throws Exception {
+        byte[] iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, mKey, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    private Cipher decryptor(SecretVault vault, String alias) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, mKey, new IvParameterSpec(vault.getIv(alias)));
+        return cipher;
+    }
+}
@@ -30,9 +30,7 @@ import android.support.annotation.Nullable;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
-import android.support.v4.content.ContextCompat;
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
@@ -53,7 +51,7 @@ import com.aitorvs.android.fingerlock.dialog.R;
  */
 @SuppressWarnings("ResourceType")
 public class FingerprintDialog extends DialogFragment
-        implements TextView.OnEditorActionListener, FingerLockResultCallback {
+        implements TextView.OnEditorActionListener, FingerLockResultCallback, FingerLockErrorCallback {
 
     // Tag to pass fragment request code argument
     private static final String ARG_REQUEST_CODE = "request_code";
@@ -64,14 +62,17 @@ public class FingerprintDialog extends DialogFragment
     // Tag to pass fragment key name argument
     private static final String ARG_KEY_NAME = "key_name";
 
+    // Tag to pass fragment retain session argument
+    private static final String ARG_RETAIN_SESSION = "retain_session";
+
     // TAG to put/get params inside bundles
     private static final String TAG_STAGE = "stage";
 
     // fingerlock library object
     private FingerLockApi.FingerLockImpl mFingerLock;
 
-    // reference to the caller context
-    private Context mContext;
+    // host activity, only referenced while attached
+    private final HostBinding<Callback> mHost = new HostBinding<>();
 
     public interface Callback {
         void onFingerprintDialogAuthenticated();
@@ -87,6 +88,8 @@ public class FingerprintDialog extends DialogFragment
     static final long SUCCESS_DELAY_MILLIS = 1300;
     static final String TAG = FingerprintDialog.class.getSimpleName();
 
+    // reusable view holder, see preload()
+    private FingerprintDialogContent mContent;
     private View mFingerprintContent;
     private View mBackupContent;
     private EditText mPassword;
@@ -95,15 +98,88 @@ public class FingerprintDialog extends DialogFragment
     private TextView mNewFingerprintEnrolledTextView;
     private ImageView mFingerprintIcon;
     private TextView mFingerprintStatus;
-    private static InputMethodManager mInputMethodManager;
 
     private Stage mLastStage;
     private Stage mStage = Stage.FINGERPRINT;
-    private Callback mCallback;
+
+    // authenticated, waiting to notify the host
+    private boolean mAuthenticatedPending;
+
+    // registration kept alive while the activity is re-created
+    private boolean mSessionRetained;
 
     public FingerprintDialog() {
     }
 
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        // the dialog instance is the registered listener, retain it to keep the session alive
+        setRetainInstance(isRetainSession());
+    }
+
+    @Override
+    public void onDestroyView() {
+        // retained dialogs are otherwise dismissed upon configuration changes
+        if (getDialog() != null && getRetainInstance()) {
+            getDialog().setDismissMessage(null);
+        }
+        super.onDestroyView();
+        // nothing posted outlives the views
+        if (mPassword != null) {
+            mPassword.removeCallbacks(mShowKeyboardRunnable);
+        }
+        if (mFingerprintIcon != null) {
+            mFingerprintIcon.removeCallbacks(mGoToBackupRunnable);
+            mFingerprintIcon.removeCallbacks(mAuthenticatedRunnable);
+        }
+        if (mFingerprintStatus != null) {
+            mFingerprintStatus.removeCallbacks(mResetErrorTextRunnable);
+        }
+        mFingerprintContent = null;
+        mBackupContent = null;
+        mPassword = null;
+        mUseFingerprintFutureCheckBox = null;
+        mPasswordDescriptionTextView = null;
+        mNewFingerprintEnrolledTextView = null;
+        mFingerprintIcon = null;
+        mFingerprintStatus = null;
+        if (mContent != null) {
+            // reused by the next dialog shown in this activity
+            FingerprintDialogContent.recycle(getActivity(), mContent);
+            mContent = null;
+        }
+    }
+
+    /**
+     * Call this method to pre-inflate the dialog content the next time the main thread is idle,
+     * e.g. in <code>onCreate()</code> of the activity that will show the dialog. The content is
+     * then reused by every dialog shown in the activity, which keeps the view inflation out of
+     * the time to first frame.
+     *
+     * @param activity activity that will show the dialog
+     */
+    public static void preload(@NonNull FragmentActivity activity) {
+        //noinspection ConstantConditions
+        if (activity != null) {
+            FingerprintDialogContent.preload(activity);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mSessionRetained) {
+            // not re-created after all
+            mSessionRetained = false;
+            mFingerLock.unregister(this);
+        }
+    }
+
+    private boolean isRetainSession() {
+        return getArguments() != null && getArguments().getBoolean(ARG_RETAIN_SESSION, false);
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -119,45 +195,53 @@ public class FingerprintDialog extends DialogFragment
             mStage = (Stage) savedInstanceState.getSerializable(TAG_STAGE);
         setCancelable(getArguments().getBoolean(ARG_CANCELABLE, true));
 
-        // create the FingerLock library instance
-        mFingerLock = FingerLockApi.create();
-
-        MaterialDialog dialog = new MaterialDialog.Builder(getActivity())
-                .title(R.string.sign_in)
-                .customView(R.layout.fingerprint_dialog_container, false)
-                .positiveText(android.R.string.cancel)
-                .negativeText(R.string.use_password)
-                .autoDismiss(false)
-                .cancelable(getArguments().getBoolean(ARG_CANCELABLE, true))
-                .onPositive(new MaterialDialog.SingleButtonCallback() {
-                    @Override
-                    public void onClick(@NonNull MaterialDialog materialDialog, @NonNull DialogAction dialogAction) {
-                        materialDialog.cancel();
-                    }
-                })
-                .onNegative(new MaterialDialog.SingleButtonCallback() {
-                    @Override
-                    public void onClick(@NonNull MaterialDialog materialDialog, @NonNull DialogAction dialogAction) {
-                        if (mStage == Stage.FINGERPRINT) {
-                            goToBackup(materialDialog);
-                        } else {
-                            verifyPassword();
+        // shared FingerLock library instance, the dialog registers its own key
+        mFingerLock = FingerLockApi.shared();
+
+        MaterialDialog dialog;
+        FingerLockTrace.begin(FingerLockTrace.DIALOG_CREATE);
+        try {
+            // pre-inflated content when available
+            mContent = FingerprintDialogContent.obtain(getActivity());
+
+            dialog = new MaterialDialog.Builder(getActivity())
+                    .title(R.string.sign_in)
+                    .customView(mContent.root, false)
+                    .positiveText(android.R.string.cancel)
+                    .negativeText(R.string.use_password)
+                    .autoDismiss(false)
+                    .cancelable(getArguments().getBoolean(ARG_CANCELABLE, true))
+                    .onPositive(new MaterialDialog.SingleButtonCallback() {
+                        @Override
+                        public void onClick(@NonNull MaterialDialog materialDialog, @NonNull DialogAction dialogAction) {
+                            materialDialog.cancel();
+                        }
+                    })
+                    .onNegative(new MaterialDialog.SingleButtonCallback() {
+                        @Override
+                        public void onClick(@NonNull MaterialDialog materialDialog, @NonNull DialogAction dialogAction) {
+                            if (mStage == Stage.FINGERPRINT) {
+                                goToBackup(materialDialog);
+                            } else {
+                                verifyPassword();
+                            }
                         }
-                    }
-                }).build();
-
-        final View v = dialog.getCustomView();
-        assert v != null;
-        mFingerprintContent = v.findViewById(R.id.fingerprint_container);
-        mBackupContent = v.findViewById(R.id.backup_container);
-        mPassword = (EditText) v.findViewById(R.id.password);
+                    }).build();
+        } finally {
+            FingerLockTrace.end();
+        }
+
+        mFingerprintContent = mContent.fingerprintContent;
+        mBackupContent = mContent.backupContent;
+        mPassword = mContent.password;
         mPassword.setOnEditorActionListener(this);
-        mPasswordDescriptionTextView = (TextView) v.findViewById(R.id.password_description);
-        mUseFingerprintFutureCheckBox = (CheckBox) v.findViewById(R.id.use_fingerprint_in_future_check);
-        mNewFingerprintEnrolledTextView = (TextView) v.findViewById(R.id.new_fingerprint_enrolled_description);
-        mFingerprintIcon = (ImageView) v.findViewById(R.id.fingerprint_icon);
-        mFingerprintStatus = (TextView) v.findViewById(R.id.fingerprint_status);
-        mFingerprintStatus.setText(R.string.initializing);
+        mPasswordDescriptionTextView = mContent.passwordDescriptionTextView;
+        mUseFingerprintFutureCheckBox = mContent.useFingerprintFutureCheckBox;
+        mNewFingerprintEnrolledTextView = mContent.newFingerprintEnrolledTextView;
+        mFingerprintIcon = mContent.fingerprintIcon;
+        mFingerprintStatus = mContent.fingerprintStatus;
+        // no need to initialize again when the sensor is still scanning
+        mFingerprintStatus.setText(mSessionRetained ? R.string.fingerprint_hint : R.string.initializing);
 
         return dialog;
     }
@@ -174,8 +258,13 @@ public class FingerprintDialog extends DialogFragment
         if (!(context instanceof Callback)) {
             throw new IllegalStateException("Components showing a FingerprintDialog must implement FingerprintDialog.Callback.");
         }
-        mCallback = (Callback) context;
-        mContext = context;
+        mHost.attach((Callback) context);
+    }
+
+    @Override
+    public void onDetach() {
+        super.onDetach();
+        mHost.detach();
     }
 
     @Override
@@ -183,25 +272,43 @@ public class FingerprintDialog extends DialogFragment
         super.onResume();
         Bundle arguments = getArguments();
 
-        if (arguments != null) {
+        if (mAuthenticatedPending) {
+            // authenticated while the activity was re-created, notify the new one
+            mFingerprintIcon.removeCallbacks(mAuthenticatedRunnable);
+            mFingerprintIcon.postDelayed(mAuthenticatedRunnable, SUCCESS_DELAY_MILLIS);
+        } else if (mSessionRetained && mFingerLock.inUseBy(this)) {
+            // same registration, only re-sync the views
+            if (mFingerLock.isScanning(this)) {
+                onFingerLockScanning(false);
+            } else if (mStage == Stage.FINGERPRINT) {
+                onFingerLockReady();
+            }
+        } else if (arguments != null) {
             String keyName = arguments.getString(ARG_KEY_NAME, "");
-            mFingerLock.register(mContext, keyName, this);
+            mFingerLock.register(getActivity(), keyName, this);
         }
-        if (BuildConfig.DEBUG) Log.d(TAG, "onResume: called");
+        mSessionRetained = false;
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "onResume: called");
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        mFingerLock.unregister(this);
-        if (BuildConfig.DEBUG) Log.d(TAG, "onPause: called");
+        if (getRetainInstance() && getActivity() != null && getActivity().isChangingConfigurations()) {
+            // activity will be re-created right away, keep scanning
+            mSessionRetained = true;
+        } else {
+            mFingerLock.unregister(this);
+        }
+        if (FingerLockLog.isDebugEnabled()) FingerLockLog.d(TAG, "onPause: called");
     }
 
     @Override
     public void onCancel(DialogInterface dialog) {
         super.onCancel(dialog);
-        if (mCallback != null)
-            mCallback.onFingerprintDialogCancelled();
+        Callback callback = mHost.get();
+        if (callback != null)
+            callback.onFingerprintDialogCancelled();
     }
 
     /**
@@ -216,7 +323,7 @@ public class FingerprintDialog extends DialogFragment
         // Show the keyboard.
         mPassword.postDelayed(mShowKeyboardRunnable, 500);
         // Fingerprint is not used anymore. Stop listening for it.
-        mFingerLock.stop();
+        mFingerLock.stop(this);
     }
 
     private void toggleButtonsEnabled(boolean enabled) {
@@ -226,8 +333,10 @@ public class FingerprintDialog extends DialogFragment
     }
 
     private void verifyPassword() {
+        Callback callback = mHost.get();
+        if (callback == null) return;
         toggleButtonsEnabled(false);
-        mCallback.onFingerprintDialogVerifyPassword(this, mPassword.getText().toString());
+        callback.onFingerprintDialogVerifyPassword(this, mPassword.getText().toString());
     }
 
     public void notifyPasswordValidation(boolean valid) {
@@ -244,12 +353,15 @@ public class FingerprintDialog extends DialogFragment
                 mStage = Stage.FINGERPRINT;
             }
             mPassword.setText("");
-            mCallback.onFingerprintDialogAuthenticated();
+            Callback callback = mHost.get();
+            if (callback != null)
+                callback.onFingerprintDialogAuthenticated();
             dismiss();
         } else {
             mPasswordDescriptionTextView.setText(R.string.invalid_password);
-            final int red = ContextCompat.getColor(getActivity(), R.color.material_red_500);
+            final int red = mContent.invalidPasswordColor;
             MDTintHelper.setTint(mPassword, red);
+            mContent.tinted = true;
             ((TextView) positive).setTextColor(red);
             ((TextView) negative).setTextColor(red);
         }
@@ -258,14 +370,19 @@ public class FingerprintDialog extends DialogFragment
     private final Runnable mShowKeyboardRunnable = new Runnable() {
         @Override
         public void run() {
-            mInputMethodManager.showSoftInput(mPassword, 0);
+            if (mPassword == null) return;
+            // resolved from the view, never cached
+            InputMethodManager imm = (InputMethodManager) mPassword.getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
+            if (imm != null)
+                imm.showSoftInput(mPassword, 0);
         }
     };
 
     private void updateStage(@Nullable MaterialDialog dialog) {
-        if (mLastStage == null || (mLastStage != mStage && mCallback != null)) {
+        Callback callback = mHost.get();
+        if (callback != null && (mLastStage == null || mLastStage != mStage)) {
             mLastStage = mStage;
-            mCallback.onFingerprintDialogStageUpdated(this, mStage);
+            callback.onFingerprintDialogStageUpdated(this, mStage);
         }
         if (dialog == null)
             dialog = (MaterialDialog) getDialog();
@@ -286,7 +403,7 @@ public class FingerprintDialog extends DialogFragment
                 mBackupContent.setVisibility(View.VISIBLE);
                 if (mStage == Stage.KEY_INVALIDATED) {
                     // Fingerprint is not used anymore. Stop listening for it.
-                    mFingerLock.stop();
+                    mFingerLock.stop(this);
                     mPasswordDescriptionTextView.setVisibility(View.GONE);
                     mNewFingerprintEnrolledTextView.setVisibility(View.VISIBLE);
                     mUseFingerprintFutureCheckBox.setVisibility(View.VISIBLE);
@@ -314,35 +431,63 @@ public class FingerprintDialog extends DialogFragment
     }
 
     private void showError(CharSequence error) {
-        if (getActivity() == null) return;
-        mFingerprintIcon.setImageResource(R.drawable.ic_fingerprint_error);
-        mFingerprintStatus.setText(error);
-        mFingerprintStatus.setTextColor(ContextCompat.getColor(getActivity(), R.color.warning_color));
+        if (getActivity() == null || mContent == null) return;
+        mContent.showStatus(mContent.errorDrawable, error, mContent.warningColor);
         mFingerprintStatus.removeCallbacks(mResetErrorTextRunnable);
         mFingerprintStatus.postDelayed(mResetErrorTextRunnable, ERROR_TIMEOUT_MILLIS);
     }
 
-    Runnable mResetErrorTextRunnable = new Runnable() {
+    // posted runnables are allocated once, not on every event
+
+    private final Runnable mResetErrorTextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (getActivity() == null || mContent == null) return;
+            mContent.showStatus(mContent.fingerprintDrawable, mContent.hintText, mContent.statusColor);
+        }
+    };
+
+    private final Runnable mGoToBackupRunnable = new Runnable() {
         @Override
         public void run() {
-            if (getActivity() == null) return;
-            mFingerprintStatus.setTextColor(ColorAttr.getColor(getActivity(), android.R.attr.textColorSecondary));
-            mFingerprintStatus.setText(getResources().getString(R.string.fingerprint_hint));
-            mFingerprintIcon.setImageResource(R.drawable.ic_fp_40px);
+            if (mContent == null) return;
+            goToBackup(null);
         }
     };
 
+    // resolves the host when run, it does not pin it
+    private final Runnable mAuthenticatedRunnable = mHost.bind(new HostBinding.Action<Callback>() {
+        @Override
+        public void run(@NonNull Callback host) {
+            mAuthenticatedPending = false;
+            host.onFingerprintDialogAuthenticated();
+            dismiss();
+        }
+    });
+
     // FingerLock callbacks
 
     @Override
     public void onFingerLockError(@FingerLock.FingerLockErrorState int errorType, Exception e) {
+        onFingerLockError(errorType, e.getMessage());
+    }
+
+    @Override
+    public void onFingerLockError(@NonNull FingerLockError error) {
+        // use the description as is, no need to build the message string
+        onFingerLockError(error.getErrorType(), error.getDescription());
+    }
+
+    private void onFingerLockError(@FingerLock.FingerLockErrorState int errorType, CharSequence message) {
+        // views are being re-created, the state is re-synced upon resume
+        if (mContent == null) return;
         switch (errorType) {
 
             case FingerLock.FINGERPRINT_ERROR_HELP:
-                showError(e.getMessage());
+                showError(message);
                 break;
             case FingerLock.FINGERPRINT_NOT_RECOGNIZED:
-                showError(getResources().getString(R.string.fingerprint_not_recognized));
+                showError(mContent.notRecognizedText);
                 break;
             case FingerLock.FINGERPRINT_NOT_SUPPORTED:
                 goToBackup(null);
@@ -353,41 +498,34 @@ public class FingerprintDialog extends DialogFragment
                 break;
             case FingerLock.FINGERPRINT_PERMISSION_DENIED:
             case FingerLock.FINGERPRINT_UNRECOVERABLE_ERROR:
-                showError(e.getMessage());
-                mFingerprintIcon.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        goToBackup(null);
-                    }
-                }, ERROR_TIMEOUT_MILLIS);
+                showError(message);
+                mFingerprintIcon.removeCallbacks(mGoToBackupRunnable);
+                mFingerprintIcon.postDelayed(mGoToBackupRunnable, ERROR_TIMEOUT_MILLIS);
                 break;
         }
     }
 
     @Override
     public void onFingerLockAuthenticationSucceeded() {
+        mAuthenticatedPending = true;
+        // views are being re-created, the host is notified upon resume
+        if (mContent == null) return;
         toggleButtonsEnabled(false);
         mFingerprintStatus.removeCallbacks(mResetErrorTextRunnable);
-        mFingerprintIcon.setImageResource(R.drawable.ic_fingerprint_success);
-        mFingerprintStatus.setTextColor(ContextCompat.getColor(getActivity(), R.color.success_color));
-        mFingerprintStatus.setText(getResources().getString(R.string.fingerprint_success));
-        mFingerprintIcon.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mCallback.onFingerprintDialogAuthenticated();
-                dismiss();
-            }
-        }, SUCCESS_DELAY_MILLIS);
+        mContent.showStatus(mContent.successDrawable, mContent.successText, mContent.successColor);
+        mFingerprintIcon.removeCallbacks(mAuthenticatedRunnable);
+        mFingerprintIcon.postDelayed(mAuthenticatedRunnable, SUCCESS_DELAY_MILLIS);
     }
 
     @Override
     public void onFingerLockReady() {
-        mFingerLock.start();
+        mFingerLock.start(this);
     }
 
     @Override
     public void onFingerLockScanning(boolean invalidKey) {
-        mFingerprintStatus.setText(R.string.fingerprint_hint);
+        if (mContent == null) return;
+        mFingerprintStatus.setText(mContent.hintText);
         if (invalidKey)
             mStage = Stage.KEY_INVALIDATED;
         updateStage(null);
@@ -402,6 +540,7 @@ public class FingerprintDialog extends DialogFragment
         private String keyName;
         private int requestCode = -1;
         private boolean cancelable = true;
+        private boolean retainSession;
         private FragmentActivity context;
 
         /**
@@ -450,6 +589,18 @@ public class FingerprintDialog extends DialogFragment
             return this;
         }
 
+        /**
+         * Set whether the fingerprint scanning survives configuration changes (e.g. rotation)
+         * without restarting the sensor
+         *
+         * @param retainSession <code>true</code> to retain the session (default = false)
+         * @return This Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setRetainSession(boolean retainSession) {
+            this.retainSession = retainSession;
+            return this;
+        }
+
         /**
          * Call this method to show and get the {@link FingerprintDialog} reference
          *
@@ -469,9 +620,9 @@ public class FingerprintDialog extends DialogFragment
             args.putString(ARG_KEY_NAME, keyName);
             args.putInt(ARG_REQUEST_CODE, requestCode);
             args.putBoolean(ARG_CANCELABLE, cancelable);
+            args.putBoolean(ARG_RETAIN_SESSION, retainSession);
             dialog.setArguments(args);
             dialog.show(context.getSupportFragmentManager(), TAG);
-            mInputMethodManager = (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
             return dialog;
         }
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.aitorvs.android.fingerlock.dialog.R;
+
+/**
+ * {@hide}
+ * View holder of the {@link FingerprintDialog} content.
+ * <p>
+ * Inflating the content (fingerprint and backup layouts) and looking up its views is the most
+ * expensive part of showing the dialog. The content can be pre-inflated while the main thread is
+ * idle and is reused across shows. At most one content is kept per activity, as a tag of its
+ * decor view, so that it never outlives the activity whose theme it was inflated with.
+ */
+@MainThread
+final class FingerprintDialogContent {
+
+    final View root;
+    final View fingerprintContent;
+    final View backupContent;
+    final EditText password;
+    final CheckBox useFingerprintFutureCheckBox;
+    final TextView passwordDescriptionTextView;
+    final TextView newFingerprintEnrolledTextView;
+    final ImageView fingerprintIcon;
+    final TextView fingerprintStatus;
+
+    // status styles, resolved once per inflated content, i.e. once per activity theme, so that
+    // the status updates allocate nothing
+    final int statusColor;
+    final int warningColor;
+    final int successColor;
+    final int invalidPasswordColor;
+    final Drawable fingerprintDrawable;
+    final Drawable errorDrawable;
+    final Drawable successDrawable;
+    final String hintText;
+    final String notRecognizedText;
+    final String successText;
+
+    // password field tinted after a wrong password, not worth reusing
+    boolean tinted;
+
+    private FingerprintDialogContent(@NonNull View root) {
+        this.root = root;
+        Context context = root.getContext();
+        statusColor = ColorAttr.getColor(context, android.R.attr.textColorSecondary);
+        warningColor = ContextCompat.getColor(context, R.color.warning_color);
+        successColor = ContextCompat.getColor(context, R.color.success_color);
+        invalidPasswordColor = ContextCompat.getColor(context, R.color.material_red_500);
+        fingerprintDrawable = ContextCompat.getDrawable(context, R.drawable.ic_fp_40px);
+        errorDrawable = ContextCompat.getDrawable(context, R.drawable.ic_fingerprint_error);
+        successDrawable = ContextCompat.getDrawable(context, R.drawable.ic_fingerprint_success);
+        hintText = context.getString(R.string.fingerprint_hint);
+        notRecognizedText = context.getString(R.string.fingerprint_not_recognized);
+        successText = context.getString(R.string.fingerprint_success);
+
+        fingerprintContent = root.findViewById(R.id.fingerprint_container);
+        backupContent = root.findViewById(R.id.backup_container);
+        password = (EditText) root.findViewById(R.id.password);
+        passwordDescriptionTextView = (TextView) root.findViewById(R.id.password_description);
+        useFingerprintFutureCheckBox = (CheckBox) root.findViewById(R.id.use_fingerprint_in_future_check);
+        newFingerprintEnrolledTextView = (TextView) root.findViewById(R.id.new_fingerprint_enrolled_description);
+        fingerprintIcon = (ImageView) root.findViewById(R.id.fingerprint_icon);
+        fingerprintStatus = (TextView) root.findViewById(R.id.fingerprint_status);
+    }
+
+    private static FingerprintDialogContent inflate(@NonNull Activity activity) {
+        FingerLockTrace.begin(FingerLockTrace.DIALOG_INFLATE);
+        try {
+            return new FingerprintDialogContent(LayoutInflater.from(activity).inflate(R.layout.fingerprint_dialog_container, null));
+        } finally {
+            FingerLockTrace.end();
+        }
+    }
+
+    /**
+     * Inflates the content of the given activity the next time the main thread is idle, unless
+     * already inflated
+     *
+     * @param activity host activity
+     */
+    static void preload(@NonNull final Activity activity) {
+        if (cached(activity) != null) {
+            return;
+        }
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (!activity.isFinishing() && cached(activity) == null) {
+                    store(activity, inflate(activity));
+                }
+                // one shot
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Returns the pre-inflated content of the activity, in its initial state, or inflates a new
+     * one. The content is owned by the caller until {@link #recycle(Activity, FingerprintDialogContent)}
+     *
+     * @param activity host activity
+     * @return detached content
+     */
+    @NonNull
+    static FingerprintDialogContent obtain(@NonNull Activity activity) {
+        FingerprintDialogContent content = cached(activity);
+        if (content == null) {
+            return inflate(activity);
+        }
+        store(activity, null);
+        content.detach();
+        content.reset();
+        return content;
+    }
+
+    /**
+     * Gives the content back for the next show, as long as the activity is there to stay
+     *
+     * @param activity host activity
+     * @param content  content previously obtained
+     */
+    static void recycle(@Nullable Activity activity, @NonNull FingerprintDialogContent content) {
+        content.detach();
+        if (activity == null || activity.isFinishing() || activity.isChangingConfigurations() || content.tinted) {
+            return;
+        }
+        if (cached(activity) == null) {
+            store(activity, content);
+        }
+    }
+
+    @Nullable
+    private static FingerprintDialogContent cached(@NonNull Activity activity) {
+        View decor = activity.getWindow().getDecorView();
+        return (FingerprintDialogContent) decor.getTag(R.id.fingerlock_dialog_content);
+    }
+
+    private static void store(@NonNull Activity activity, @Nullable FingerprintDialogContent content) {
+        activity.getWindow().getDecorView().setTag(R.id.fingerlock_dialog_content, content);
+    }
+
+    private void detach() {
+        ViewParent parent = root.getParent();
+        if (parent instanceof ViewGroup) {
+            ((ViewGroup) parent).removeView(root);
+        }
+    }
+
+    /**
+     * Updates the fingerprint status, allocation free
+     */
+    void showStatus(@NonNull Drawable icon, @NonNull CharSequence text, int color) {
+        fingerprintIcon.setImageDrawable(icon);
+        fingerprintStatus.setText(text);
+        fingerprintStatus.setTextColor(color);
+    }
+
+    /**
+     * Restores the state of the content as inflated
+     */
+    private void reset() {
+        fingerprintContent.setVisibility(View.VISIBLE);
+        backupContent.setVisibility(View.GONE);
+        showStatus(fingerprintDrawable, hintText, statusColor);
+        password.setText("");
+        password.setOnEditorActionListener(null);
+        passwordDescriptionTextView.setText(R.string.password_description);
+        passwordDescriptionTextView.setVisibility(View.VISIBLE);
+        newFingerprintEnrolledTextView.setVisibility(View.GONE);
+        useFingerprintFutureCheckBox.setChecked(true);
+        useFingerprintFutureCheckBox.setVisibility(View.GONE);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * {@hide}
+ * Reference to the host (activity) of a dialog, only valid between {@link #attach(Object)} and
+ * {@link #detach()}.
+ * <p>
+ * Work that runs later (posted or delayed runnables, asynchronous callbacks) must not capture the
+ * host, otherwise it outlives the host lifecycle. Wrap it with {@link #bind(Action)}: the
+ * host is resolved when the work runs and the work is skipped once detached.
+ *
+ * @param <T> host type
+ */
+final class HostBinding<T> {
+
+    /**
+     * Work to run on the attached host
+     *
+     * @param <T> host type
+     */
+    interface Action<T> {
+        void run(@NonNull T host);
+    }
+
+    private T mHost;
+
+    void attach(@NonNull T host) {
+        mHost = host;
+    }
+
+    /**
+     * Drops the host reference, bound work won't run from now on
+     */
+    void detach() {
+        mHost = null;
+    }
+
+    @Nullable
+    T get() {
+        return mHost;
+    }
+
+    boolean isAttached() {
+        return mHost != null;
+    }
+
+    /**
+     * Returns a runnable that runs the action on the host attached at the time it runs, if any.
+     * The runnable holds no reference to the host.
+     *
+     * @param action action to run
+     * @return runnable to post
+     */
+    @NonNull
+    Runnable bind(@NonNull final Action<T> action) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                T host = mHost;
+                if (host != null) {
+                    action.run(host);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016 Aitor Viana Sanchez
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.aitorvs.android.fingerlock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Retention tests of the dialog host binding. The host (activity) must be collectable once the
+ * dialog is detached, even when bound work is still queued, as the delayed runnables posted by
+ * {@link FingerprintDialog} are.
+ */
+public class HostBindingRetentionTest {
+
+    private static final int GC_ATTEMPTS = 20;
+
+    /**
+     * Stands for the host activity
+     */
+    private static final class Host {
+        int authenticated;
+        int cancelled;
+    }
+
+    private HostBinding<Host> mBinding;
+
+    // stands for the main thread message queue, it outlives the host
+    private List<Runnable> mQueue;
+
+    private Runnable mAuthenticated;
+
+    @Before
+    public void setUp() {
+        mBinding = new HostBinding<>();
+        mQueue = new ArrayList<>();
+        mAuthenticated = mBinding.bind(new HostBinding.Action<Host>() {
+            @Override
+            public void run(Host host) {
+                host.authenticated++;
+            }
+        });
+    }
+
+    @Test
+    public void hostIsCollectableAfterDismiss() {
+        WeakReference<Host> host = attachNewHost();
+
+        // authenticated, the dialog is dismissed before the delayed notification runs
+        mQueue.add(mAuthenticated);
+        mBinding.detach();
+
+        assertCollected(host);
+        runQueue();
+    }
+
+    @Test
+    public void hostIsCollectableAfterRotation() {
+        WeakReference<Host> oldHost = attachNewHost();
+        mQueue.add(mAuthenticated);
+
+        // configuration change: old activity detached, new one attached
+        mBinding.detach();
+        Host newHost = new Host();
+        mBinding.attach(newHost);
+
+        assertCollected(oldHost);
+
+        // the pending work is delivered to the new host
+        runQueue();
+        assertEquals(1, newHost.authenticated);
+        assertSame(newHost, mBinding.get());
+    }
+
+    @Test
+    public void hostIsCollectableAfterCancel() {
+        WeakReference<Host> host = attachNewHost();
+
+        mQueue.add(mBinding.bind(new HostBinding.Action<Host>() {
+            @Override
+            public void run(Host host) {
+                host.cancelled++;
+            }
+        }));
+        runQueue();
+        assertEquals(1, host.get().cancelled);
+
+        mBinding.detach();
+        assertCollected(host);
+    }
+
+    @Test
+    public void boundWorkIsSkippedOnceDetached() {
+        Host host = new Host();
+        mBinding.attach(host);
+        mQueue.add(mAuthenticated);
+        mBinding.detach();
+
+        runQueue();
+
+        assertEquals(0, host.authenticated);
+        assertFalse(mBinding.isAttached());
+        assertNull(mBinding.get());
+    }
+
+    @Test
+    public void boundWorkRunsWhileAttached() {
+        Host host = new Host();
+        mBinding.attach(host);
+        mQueue.add(mAuthenticated);
+
+        runQueue();
+
+        assertEquals(1, host.authenticated);
+        assertTrue(mBinding.isAttached());
+    }
+
+    /**
+     * Attaches a host only referenced by the binding
+     */
+    private WeakReference<Host> attachNewHost() {
+        Host host = new Host();
+        mBinding.attach(host);
+        assertNotNull(mBinding.get());
+        return new WeakReference<>(host);
+    }
+
+    private void runQueue() {
+        for (Runnable runnable : mQueue) {
+            runnable.run();
+        }
+        mQueue.clear();
+    }
+
+    private static void assertCollected(WeakReference<?> reference) {
+        for (int i = 0; i < GC_ATTEMPTS && reference.get() != null; i++) {
+            System.gc();
+            System.runFinalization();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (reference.get() != null) {
+            fail("Host is still reachable");
+        }
+    }
+}